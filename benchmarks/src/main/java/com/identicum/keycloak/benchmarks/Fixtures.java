@@ -0,0 +1,100 @@
+package com.identicum.keycloak.benchmarks;
+
+import com.identicum.keycloak.RestConfiguration;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.logging.Level;
+
+import static com.identicum.keycloak.RestConfiguration.*;
+
+/**
+ * Keycloak objects needed to run the provider outside of a Keycloak server.
+ */
+public final class Fixtures {
+
+	public static final String REALM_ID = "benchmark";
+	public static final String COMPONENT_ID = "rest-repo-benchmark";
+
+	static {
+		// the provider logs every call at INFO level, which would be measured instead of the code
+		java.util.logging.Logger.getLogger("").setLevel(Level.WARNING);
+	}
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Provider configuration pointing to the given API, with the node cache disabled.
+	 */
+	public static MultivaluedHashMap<String, String> configuration(String baseUrl) {
+		MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+		config.putSingle(PROPERTY_BASE_URL, baseUrl);
+		config.putSingle(PROPERTY_MAX_HTTP_CONNECTIONS, "50");
+		config.putSingle(PROPERTY_AUTH_TYPE, AUTH_NONE);
+		config.putSingle(API_SOCKET_TIMEOUT, "5000");
+		config.putSingle(API_CONNECT_TIMEOUT, "1000");
+		config.putSingle(API_CONNECTION_REQUEST_TIMEOUT, "1000");
+		config.putSingle(HTTP_STATS_INTERVAL, "0");
+		config.putSingle(METRICS_ENABLED, "false");
+		config.putSingle(SEARCH_PAGING_SUPPORTED, "true");
+		config.putSingle(USER_CACHE_TTL, "0");
+		return config;
+	}
+
+	public static RestConfiguration restConfiguration(String baseUrl, Map<String, String> overrides) {
+		MultivaluedHashMap<String, String> config = configuration(baseUrl);
+		overrides.forEach(config::putSingle);
+		return new RestConfiguration(config);
+	}
+
+	public static ComponentModel component(MultivaluedHashMap<String, String> config) {
+		ComponentModel model = new ComponentModel();
+		model.setId(COMPONENT_ID);
+		model.setName(COMPONENT_ID);
+		model.setConfig(config);
+		return model;
+	}
+
+	/**
+	 * Session without an active transaction, so adapter updates are sent right away.
+	 */
+	public static KeycloakSession session() {
+		KeycloakTransactionManager transactionManager = stub(KeycloakTransactionManager.class, Map.of());
+		return stub(KeycloakSession.class, Map.of("getTransactionManager", transactionManager));
+	}
+
+	public static RealmModel realm() {
+		return stub(RealmModel.class, Map.of("getId", REALM_ID, "getName", REALM_ID));
+	}
+
+	/**
+	 * Implement an interface returning the given values by method name, and default values otherwise.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T stub(Class<T> type, Map<String, Object> values) {
+		return (T) Proxy.newProxyInstance(Fixtures.class.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return type.getSimpleName() + " stub";
+			}
+			if (values.containsKey(method.getName())) {
+				return values.get(method.getName());
+			}
+			Class<?> returnType = method.getReturnType();
+			if (returnType == boolean.class) return false;
+			if (returnType == int.class) return 0;
+			if (returnType == long.class) return 0L;
+			return null;
+		});
+	}
+}
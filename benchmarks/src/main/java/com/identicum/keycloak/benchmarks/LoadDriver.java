@@ -0,0 +1,227 @@
+package com.identicum.keycloak.benchmarks;
+
+import com.identicum.keycloak.KeycloakRestRepoProvider;
+import com.identicum.keycloak.RestConfiguration;
+import com.identicum.keycloak.RestHandler;
+import com.identicum.keycloak.UserCache;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static com.identicum.keycloak.RestConfiguration.*;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Runs concurrent logins and searches through the provider against the stub API, and reports
+ * throughput and latency percentiles of each operation. Options are given as {@code --name=value}:
+ * <ul>
+ *   <li>{@code users}: dataset size (10000)</li>
+ *   <li>{@code threads}: concurrent clients (16)</li>
+ *   <li>{@code warmup}, {@code duration}: seconds of warmup and of measurement (5, 30)</li>
+ *   <li>{@code latency}, {@code jitter}: milliseconds of latency of the stub and max random addition (10, 0)</li>
+ *   <li>{@code errorRate}, {@code errorStatus}: fraction of stub requests failing, and their status (0, 500)</li>
+ *   <li>{@code searchRatio}: fraction of operations that are searches instead of logins (0.1)</li>
+ *   <li>{@code seed}: seed of the users sequence of each client (1)</li>
+ * </ul>
+ * Any other option is passed as a provider property, e.g. {@code --httpTransport=JAVA --authType=OAUTH}.
+ */
+public class LoadDriver {
+
+	private static final Map<String, String> DEFAULTS = Map.of(
+			"users", "10000",
+			"threads", "16",
+			"warmup", "5",
+			"duration", "30",
+			"latency", "10",
+			"jitter", "0",
+			"errorRate", "0",
+			"errorStatus", "500",
+			"searchRatio", "0.1",
+			"seed", "1");
+
+	private final KeycloakSession session = Fixtures.session();
+	private final RealmModel realm = Fixtures.realm();
+	private final ComponentModel model;
+	private final RestHandler restHandler;
+	private final UserCache userCache;
+	private final int datasetSize;
+	private final double searchRatio;
+	private final long seed;
+
+	public LoadDriver(MultivaluedHashMap<String, String> config, int datasetSize, double searchRatio, long seed) {
+		RestConfiguration configuration = new RestConfiguration(config);
+		this.model = Fixtures.component(config);
+		this.restHandler = new RestHandler(configuration);
+		this.userCache = new UserCache(configuration);
+		this.datasetSize = datasetSize;
+		this.searchRatio = searchRatio;
+		this.seed = seed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+		Map<String, String> properties = new LinkedHashMap<>();
+		for (String arg : args) {
+			String[] nameValue = arg.replaceFirst("^--", "").split("=", 2);
+			if (nameValue.length != 2) throw new IllegalArgumentException("Invalid option " + arg + ". Expected --name=value");
+			(DEFAULTS.containsKey(nameValue[0]) ? options : properties).put(nameValue[0], nameValue[1]);
+		}
+
+		int datasetSize = Integer.parseInt(options.get("users"));
+		try (StubUserApi api = new StubUserApi(datasetSize, Long.parseLong(options.get("latency")))) {
+			api.setLatencyJitter(Long.parseLong(options.get("jitter")));
+			api.setErrorRate(Double.parseDouble(options.get("errorRate")));
+			api.setErrorStatus(Integer.parseInt(options.get("errorStatus")));
+
+			MultivaluedHashMap<String, String> config = Fixtures.configuration(api.getBaseUrl());
+			config.putSingle(PROPERTY_OAUTH_TOKEN_ENDPOINT, api.getTokenEndpoint());
+			config.putSingle(PROPERTY_OAUTH_CLIENT_ID, "load-driver");
+			config.putSingle(PROPERTY_OAUTH_CLIENT_SECRET, "secret");
+			config.putSingle(PROPERTY_OAUTH_SCOPE, "users");
+			config.putSingle(USER_CACHE_TTL, "60");
+			properties.forEach(config::putSingle);
+
+			LoadDriver driver = new LoadDriver(config, datasetSize, Double.parseDouble(options.get("searchRatio")), Long.parseLong(options.get("seed")));
+			int threads = Integer.parseInt(options.get("threads"));
+			System.out.printf("Running %s clients against a stub with %d users, %sms latency and %s error rate%n",
+					threads, datasetSize, options.get("latency"), options.get("errorRate"));
+
+			driver.run(threads, SECONDS.toNanos(Long.parseLong(options.get("warmup"))), false);
+			long requestsBefore = api.getRequests();
+			long duration = SECONDS.toNanos(Long.parseLong(options.get("duration")));
+			Map<String, Recorder> results = driver.run(threads, duration, true);
+			report(results, duration);
+			System.out.printf("Stub API requests: %d (%.1f/s)%n", api.getRequests() - requestsBefore, (api.getRequests() - requestsBefore) / (duration / 1e9));
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Run the clients for the given time.
+	 * @param record Whether latencies are recorded, or it is just a warmup
+	 * @return latencies recorded per operation
+	 */
+	public Map<String, Recorder> run(int threads, long duration, boolean record) throws InterruptedException {
+		Recorder[] logins = new Recorder[threads];
+		Recorder[] searches = new Recorder[threads];
+		CountDownLatch done = new CountDownLatch(threads);
+		long end = System.nanoTime() + duration;
+		for (int i = 0; i < threads; i++) {
+			Recorder login = logins[i] = new Recorder();
+			Recorder search = searches[i] = new Recorder();
+			Random random = new Random(seed + i);
+			Thread client = new Thread(() -> {
+				try {
+					while (System.nanoTime() < end) {
+						boolean isSearch = random.nextDouble() < searchRatio;
+						String username = "user" + random.nextInt(datasetSize);
+						long start = System.nanoTime();
+						try {
+							if (isSearch) {
+								search(username);
+							} else {
+								login(username);
+							}
+							if (record) (isSearch ? search : login).record(System.nanoTime() - start);
+						}
+						catch (RuntimeException re) {
+							if (record) (isSearch ? search : login).error();
+						}
+					}
+				}
+				finally {
+					done.countDown();
+				}
+			}, "load-driver-" + i);
+			client.setDaemon(true);
+			client.start();
+		}
+		done.await();
+		Map<String, Recorder> results = new LinkedHashMap<>();
+		results.put("login", Recorder.merge(List.of(logins)));
+		results.put("search", Recorder.merge(List.of(searches)));
+		return results;
+	}
+
+	/**
+	 * A login as done by Keycloak: find the user in a new session and validate its password.
+	 */
+	private void login(String username) {
+		KeycloakRestRepoProvider provider = newProvider();
+		UserModel user = provider.getUserByUsername(realm, username);
+		if (user == null || !provider.isValid(realm, user, UserCredentialModel.password(StubUserApi.PASSWORD))) {
+			throw new IllegalStateException("Login of " + username + " failed");
+		}
+	}
+
+	/**
+	 * A search as done by the admin console: the first page of users matching a prefix.
+	 */
+	private void search(String username) {
+		newProvider().searchForUserStream(realm, username.substring(0, Math.min(username.length(), 6)), 0, 20).count();
+	}
+
+	private KeycloakRestRepoProvider newProvider() {
+		return new KeycloakRestRepoProvider(session, model, restHandler, userCache, null);
+	}
+
+	private static void report(Map<String, Recorder> results, long duration) {
+		System.out.printf("%-8s %10s %8s %10s %10s %10s %10s %10s %10s%n", "op", "count", "errors", "ops/s", "p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)", "max(ms)");
+		results.forEach((operation, recorder) -> {
+			long[] latencies = recorder.sorted();
+			System.out.printf("%-8s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+					operation, latencies.length, recorder.errors, latencies.length / (duration / 1e9),
+					percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+					percentile(latencies, 0.999), percentile(latencies, 1));
+		});
+	}
+
+	private static double percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) return 0;
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(index, 0)] / 1e6;
+	}
+
+	/**
+	 * Latencies of a single client, kept unsynchronized in a growable array.
+	 */
+	public static class Recorder {
+		private long[] latencies = new long[1024];
+		private int size = 0;
+		private long errors = 0;
+
+		public void record(long nanos) {
+			if (size == latencies.length) latencies = Arrays.copyOf(latencies, size * 2);
+			latencies[size++] = nanos;
+		}
+
+		public void error() {
+			errors++;
+		}
+
+		public long[] sorted() {
+			long[] sorted = Arrays.copyOf(latencies, size);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+
+		static Recorder merge(List<Recorder> recorders) {
+			Recorder merged = new Recorder();
+			for (Recorder recorder : recorders) {
+				for (int i = 0; i < recorder.size; i++) merged.record(recorder.latencies[i]);
+				merged.errors += recorder.errors;
+			}
+			return merged;
+		}
+	}
+}
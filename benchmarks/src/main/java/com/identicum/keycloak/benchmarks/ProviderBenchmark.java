@@ -0,0 +1,90 @@
+package com.identicum.keycloak.benchmarks;
+
+import com.identicum.keycloak.KeycloakRestRepoProvider;
+import com.identicum.keycloak.RestConfiguration;
+import com.identicum.keycloak.RestHandler;
+import com.identicum.keycloak.UserCache;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.identicum.keycloak.RestConfiguration.USER_CACHE_TTL;
+
+/**
+ * End to end user lookups and password validations through the provider, against the stub API
+ * with the given latency. A new provider is created for every operation, as Keycloak does for
+ * every session, so only the node cache is shared between operations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class ProviderBenchmark {
+
+	private static final int DATASET_SIZE = 1000;
+
+	@Param({ "0", "5" })
+	private long latency;
+
+	@Param({ "0", "60" })
+	private String userCacheTtl;
+
+	private StubUserApi api;
+	private KeycloakSession session;
+	private RealmModel realm;
+	private ComponentModel model;
+	private RestHandler restHandler;
+	private UserCache userCache;
+	private int next;
+
+	@Setup
+	public void setup() throws IOException {
+		api = new StubUserApi(DATASET_SIZE, latency);
+		MultivaluedHashMap<String, String> config = Fixtures.configuration(api.getBaseUrl());
+		config.putSingle(USER_CACHE_TTL, userCacheTtl);
+		RestConfiguration configuration = new RestConfiguration(config);
+		session = Fixtures.session();
+		realm = Fixtures.realm();
+		model = Fixtures.component(config);
+		restHandler = new RestHandler(configuration);
+		userCache = new UserCache(configuration);
+	}
+
+	@TearDown
+	public void tearDown() {
+		api.close();
+	}
+
+	@Benchmark
+	public UserModel getUser() {
+		return newProvider().getUser(nextUsername(), realm);
+	}
+
+	@Benchmark
+	public boolean isValid() {
+		KeycloakRestRepoProvider provider = newProvider();
+		UserModel user = provider.getUser(nextUsername(), realm);
+		return provider.isValid(realm, user, UserCredentialModel.password(StubUserApi.PASSWORD));
+	}
+
+	private KeycloakRestRepoProvider newProvider() {
+		return new KeycloakRestRepoProvider(session, model, restHandler, userCache, null);
+	}
+
+	/**
+	 * Usernames are requested in a fixed order, so every run does the same requests.
+	 */
+	private String nextUsername() {
+		next = (next + 1) % DATASET_SIZE;
+		return "user" + next;
+	}
+}
@@ -0,0 +1,75 @@
+package com.identicum.keycloak.benchmarks;
+
+import com.identicum.keycloak.RestHandler;
+import org.openjdk.jmh.annotations.*;
+
+import jakarta.json.JsonArray;
+import jakarta.json.JsonObject;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.identicum.keycloak.RestConfiguration.PROPERTY_HTTP_TRANSPORT;
+import static org.keycloak.models.UserModel.EMAIL;
+import static org.keycloak.models.UserModel.SEARCH;
+
+/**
+ * Request building, execution and response parsing of the handler calls, against the stub API
+ * on loopback without added latency, so the measured time is dominated by the client side.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class RestHandlerBenchmark {
+
+	private static final int DATASET_SIZE = 1000;
+
+	@Param({ "APACHE", "JAVA" })
+	private String transport;
+
+	private StubUserApi api;
+	private RestHandler restHandler;
+	private int next;
+
+	@Setup
+	public void setup() throws IOException {
+		api = new StubUserApi(DATASET_SIZE, 0);
+		restHandler = new RestHandler(Fixtures.restConfiguration(api.getBaseUrl(), Map.of(PROPERTY_HTTP_TRANSPORT, transport)));
+	}
+
+	@TearDown
+	public void tearDown() {
+		api.close();
+	}
+
+	@Benchmark
+	public JsonObject findUserByUsername() {
+		return restHandler.findUserByUsername(nextUsername());
+	}
+
+	@Benchmark
+	public boolean authenticate() {
+		return restHandler.authenticate(nextUsername(), StubUserApi.PASSWORD);
+	}
+
+	@Benchmark
+	public JsonArray findUsersPage() {
+		return restHandler.findUsers("user", 0, 20);
+	}
+
+	@Benchmark
+	public Map<String, String> toQueryParameters() {
+		return restHandler.toQueryParameters(Map.of(SEARCH, "user1", EMAIL, "user1@example.com"), true);
+	}
+
+	/**
+	 * Usernames are requested in a fixed order, so every run does the same requests.
+	 */
+	private String nextUsername() {
+		next = (next + 1) % DATASET_SIZE;
+		return "user" + next;
+	}
+}
@@ -0,0 +1,149 @@
+package com.identicum.keycloak.benchmarks;
+
+import com.identicum.keycloak.RestUser;
+import com.identicum.keycloak.RestUserAdapter;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jakarta.json.JsonObject;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.valueOf;
+import static org.keycloak.storage.StorageId.keycloakId;
+
+/**
+ * Creation of the user adapters returned to Keycloak, and reading of their attributes.
+ * The {@code json} benchmarks replay the reads of the adapter backed by the raw JSON user, which
+ * looked up every value and rebuilt the attributes map on each call, as a baseline for the adapter
+ * backed by the decoded {@link RestUser} shared through the node cache. Run them with
+ * {@code -prof gc} to compare the allocations per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class RestUserAdapterBenchmark {
+
+	private KeycloakSession session;
+	private RealmModel realm;
+	private ComponentModel model;
+	private JsonObject user;
+	private RestUser restUser;
+	private RestUserAdapter adapter;
+	private JsonUserAdapter jsonAdapter;
+
+	@Setup
+	public void setup() {
+		session = Fixtures.session();
+		realm = Fixtures.realm();
+		model = Fixtures.component(Fixtures.configuration("http://127.0.0.1"));
+		user = StubUserApi.user(1);
+		restUser = RestUser.of(model.getId(), user);
+		adapter = new RestUserAdapter(session, realm, model, restUser);
+		jsonAdapter = new JsonUserAdapter(model, user);
+	}
+
+	@Benchmark
+	public RestUserAdapter construct() {
+		return new RestUserAdapter(session, realm, model, restUser);
+	}
+
+	@Benchmark
+	public RestUserAdapter constructDecoding() {
+		return new RestUserAdapter(session, realm, model, user);
+	}
+
+	@Benchmark
+	public JsonUserAdapter constructJson() {
+		return new JsonUserAdapter(model, user);
+	}
+
+	@Benchmark
+	public Map<String, List<String>> getAttributes() {
+		return adapter.getAttributes();
+	}
+
+	@Benchmark
+	public Map<String, List<String>> getAttributesJson() {
+		return jsonAdapter.getAttributes();
+	}
+
+	/**
+	 * Values read by Keycloak for each user when it issues a token with the default profile, email and userinfo mappers.
+	 */
+	@Benchmark
+	public void readClaims(Blackhole blackhole) {
+		blackhole.consume(adapter.getId());
+		blackhole.consume(adapter.getUsername());
+		blackhole.consume(adapter.getFirstName());
+		blackhole.consume(adapter.getLastName());
+		blackhole.consume(adapter.getEmail());
+		blackhole.consume(adapter.isEnabled());
+		blackhole.consume(adapter.getAttributes());
+	}
+
+	@Benchmark
+	public void readClaimsJson(Blackhole blackhole) {
+		blackhole.consume(jsonAdapter.getId());
+		blackhole.consume(jsonAdapter.getUsername());
+		blackhole.consume(jsonAdapter.getFirstName());
+		blackhole.consume(jsonAdapter.getLastName());
+		blackhole.consume(jsonAdapter.getEmail());
+		blackhole.consume(jsonAdapter.isEnabled());
+		blackhole.consume(jsonAdapter.getAttributes());
+	}
+
+	/**
+	 * Getters of the adapter backed by the raw JSON user, before users were decoded once into a {@link RestUser}.
+	 */
+	public static class JsonUserAdapter {
+
+		private final JsonObject user;
+		private final String keycloakId;
+
+		JsonUserAdapter(ComponentModel model, JsonObject user) {
+			this.user = user;
+			this.keycloakId = keycloakId(model, valueOf(user.getInt("id")));
+		}
+
+		public String getId() {
+			return keycloakId;
+		}
+
+		public String getUsername() {
+			return user.getString("username");
+		}
+
+		public String getFirstName() {
+			return user.getString("firstName");
+		}
+
+		public String getLastName() {
+			return user.getString("lastName");
+		}
+
+		public String getEmail() {
+			return user.getString("email");
+		}
+
+		public boolean isEnabled() {
+			return user.getBoolean("active");
+		}
+
+		public Map<String, List<String>> getAttributes() {
+			Map<String, List<String>> attrs = new HashMap<>();
+			if (user.containsKey("firstName")) attrs.put("firstName", List.of(getFirstName()));
+			if (user.containsKey("lastName")) attrs.put("lastName", List.of(getLastName()));
+			if (user.containsKey("email")) attrs.put("email", List.of(getEmail()));
+			return attrs;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.identicum.keycloak.benchmarks;
+
+import com.identicum.keycloak.SimpleHttpResponse;
+import org.openjdk.jmh.annotations.*;
+
+import jakarta.json.JsonArray;
+import jakarta.json.JsonArrayBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static jakarta.json.Json.createArrayBuilder;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Parsing of user search responses, from a single user to large pages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class SimpleHttpResponseBenchmark {
+
+	private static final Map<String, String> JSON_HEADERS = Map.of("content-type", "application/json");
+
+	@Param({ "1", "100", "1000" })
+	private int users;
+
+	private String body;
+	private byte[] bodyBytes;
+
+	@Setup
+	public void setup() {
+		JsonArrayBuilder builder = createArrayBuilder();
+		for (int i = 0; i < users; i++) {
+			builder.add(StubUserApi.user(i));
+		}
+		body = builder.build().toString();
+		bodyBytes = body.getBytes(UTF_8);
+	}
+
+	@Benchmark
+	public JsonArray parseFromStream() throws IOException {
+		return SimpleHttpResponse.fromStream(200, JSON_HEADERS, new ByteArrayInputStream(bodyBytes)).getResponseAsJsonArray();
+	}
+
+	@Benchmark
+	public JsonArray parseFromString() {
+		return new SimpleHttpResponse(200, body).getResponseAsJsonArray();
+	}
+}
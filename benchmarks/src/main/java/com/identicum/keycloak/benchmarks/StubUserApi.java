@@ -0,0 +1,361 @@
+package com.identicum.keycloak.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jboss.logging.Logger;
+
+import jakarta.json.JsonArrayBuilder;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonObjectBuilder;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonString;
+import jakarta.json.JsonStructure;
+import jakarta.json.JsonValue;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static jakarta.json.Json.createArrayBuilder;
+import static jakarta.json.Json.createObjectBuilder;
+import static jakarta.json.Json.createReader;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * In-process stub of the user API, serving a generated dataset on a loopback port.
+ * It implements the contract consumed by the provider: {@code /authenticate}, {@code /users} search and
+ * creation, {@code /users/{username}} GET (with ETag revalidation), PATCH and DELETE, and a client
+ * credentials token endpoint.
+ * Large responses are gzip encoded when the client accepts it, and gzip encoded requests are decoded.
+ * Every request waits the configured latency before being answered, and a configurable fraction of
+ * them fails with an error status, to simulate a remote API.
+ */
+public class StubUserApi implements Closeable {
+
+	private static final Logger logger = getLogger(StubUserApi.class);
+
+	public static final String PASSWORD = "password";
+	public static final String TOKEN_PATH = "/token";
+	// responses smaller than this are not worth compressing
+	private static final int GZIP_MIN_SIZE = 1024;
+
+	static {
+		// headers and body are written separately, without TCP_NODELAY every response waits for the delayed ACK
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Map<String, JsonObject> users = new ConcurrentHashMap<>();
+	private final Map<String, String> passwords = new ConcurrentHashMap<>();
+	private final Set<String> accessTokens = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private volatile long latency;
+	private volatile long latencyJitter = 0;
+	private volatile double errorRate = 0;
+	private volatile int errorStatus = 500;
+	private volatile int tokenExpiresIn = 300;
+
+	/**
+	 * Start the stub on a random loopback port.
+	 * @param datasetSize Number of users generated, named user0 to user{datasetSize - 1}
+	 * @param latency Milliseconds waited before answering each request
+	 */
+	public StubUserApi(int datasetSize, long latency) throws IOException {
+		this.latency = latency;
+		for (int i = 0; i < datasetSize; i++) {
+			JsonObject user = user(i);
+			users.put(user.getString("username"), user);
+			passwords.put(user.getString("username"), PASSWORD);
+		}
+		nextId.set(datasetSize);
+		this.executor = newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "stub-user-api");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.server.createContext("/authenticate", exchange -> handle(exchange, this::authenticate));
+		this.server.createContext("/users", exchange -> handle(exchange, this::users));
+		this.server.createContext(TOKEN_PATH, exchange -> handle(exchange, this::token));
+		this.server.setExecutor(executor);
+		this.server.start();
+		logger.infov("Stub user API started on {0} with {1} users", getBaseUrl(), datasetSize);
+	}
+
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public String getTokenEndpoint() {
+		return getBaseUrl() + TOKEN_PATH;
+	}
+
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * @param latencyJitter Max milliseconds randomly added to the latency of each request
+	 */
+	public void setLatencyJitter(long latencyJitter) {
+		this.latencyJitter = latencyJitter;
+	}
+
+	/**
+	 * @param errorRate Fraction of requests answered with a 500 status, between 0 and 1
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * @param errorStatus Status of the failed requests, 500 by default
+	 */
+	public void setErrorStatus(int errorStatus) {
+		this.errorStatus = errorStatus;
+	}
+
+	/**
+	 * @param tokenExpiresIn Seconds the access tokens issued by the token endpoint are valid
+	 */
+	public void setTokenExpiresIn(int tokenExpiresIn) {
+		this.tokenExpiresIn = tokenExpiresIn;
+	}
+
+	public int getUsersCount() {
+		return users.size();
+	}
+
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	/**
+	 * Build the generated user with the given id, as returned by the API.
+	 */
+	public static JsonObject user(int id) {
+		return createObjectBuilder()
+				.add("id", id)
+				.add("username", "user" + id)
+				.add("email", "user" + id + "@example.com")
+				.add("firstName", "First" + id)
+				.add("lastName", "Last" + id)
+				.add("active", true)
+				.build();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private static byte[] gzip(byte[] body) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+			gzip.write(body);
+		}
+		return buffer.toByteArray();
+	}
+
+	private void handle(HttpExchange exchange, Handler handler) throws IOException {
+		try (exchange) {
+			requests.increment();
+			if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+				exchange.setStreams(new GZIPInputStream(exchange.getRequestBody()), null);
+			}
+			long delay = latency + (latencyJitter > 0 ? ThreadLocalRandom.current().nextLong(latencyJitter + 1) : 0);
+			if (delay > 0) {
+				Thread.sleep(delay);
+			}
+			Response response;
+			if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+				// unread request bodies make the server close the connection
+				exchange.getRequestBody().readAllBytes();
+				response = new Response(errorStatus, null);
+			} else if (!isAuthorized(exchange)) {
+				exchange.getRequestBody().readAllBytes();
+				response = new Response(401, null);
+			} else {
+				response = handler.handle(exchange);
+			}
+			if (response.status >= 500) {
+				errors.increment();
+			}
+			if (response.body == null) {
+				exchange.sendResponseHeaders(response.status, -1);
+				return;
+			}
+			byte[] body = response.body.toString().getBytes(UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+			if (body.length >= GZIP_MIN_SIZE && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+				body = gzip(body);
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			}
+			exchange.sendResponseHeaders(response.status, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Requests with a bearer token are only accepted if the token was issued by this stub.
+	 * Requests without credentials or with basic credentials are always accepted.
+	 */
+	private boolean isAuthorized(HttpExchange exchange) {
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		if (authorization == null || !authorization.startsWith("Bearer ")) return true;
+		return accessTokens.contains(authorization.substring("Bearer ".length()));
+	}
+
+	private Response token(HttpExchange exchange) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) return new Response(405, null);
+		Map<String, String> form = parseQuery(new String(exchange.getRequestBody().readAllBytes(), UTF_8));
+		if (!"client_credentials".equals(form.get("grant_type"))) {
+			return new Response(400, createObjectBuilder().add("error", "unsupported_grant_type").build());
+		}
+		String accessToken = UUID.randomUUID().toString();
+		accessTokens.add(accessToken);
+		return new Response(200, createObjectBuilder()
+				.add("access_token", accessToken)
+				.add("token_type", "Bearer")
+				.add("expires_in", tokenExpiresIn)
+				.build());
+	}
+
+	private Response authenticate(HttpExchange exchange) throws IOException {
+		JsonObject credentials = readBody(exchange);
+		String password = passwords.get(credentials.getString("username", ""));
+		boolean valid = password != null && password.equals(credentials.getString("password", null));
+		return new Response(valid ? 200 : 401, null);
+	}
+
+	private Response users(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		if ("/users".equals(path) || "/users/".equals(path)) {
+			return "POST".equals(exchange.getRequestMethod()) ? createUser(exchange) : searchUsers(exchange);
+		}
+		String username = URLDecoder.decode(path.substring("/users/".length()), UTF_8);
+		switch (exchange.getRequestMethod()) {
+			case "GET":
+				JsonObject user = users.get(username);
+				if (user == null) return new Response(404, null);
+				String etag = "\"" + Integer.toHexString(user.hashCode()) + "\"";
+				exchange.getResponseHeaders().set("ETag", etag);
+				return etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match")) ? new Response(304, null) : new Response(200, user);
+			case "PATCH":
+				return patchUser(username, readBody(exchange));
+			case "DELETE":
+				passwords.remove(username);
+				return users.remove(username) == null ? new Response(404, null) : new Response(200, null);
+			default:
+				return new Response(405, null);
+		}
+	}
+
+	private Response createUser(HttpExchange exchange) throws IOException {
+		JsonObject request = readBody(exchange);
+		String username = request.getString("username", null);
+		if (username == null) return new Response(400, null);
+		JsonObjectBuilder builder = createObjectBuilder(request).add("id", nextId.getAndIncrement());
+		builder.remove("password");
+		JsonObject user = builder.build();
+		if (users.putIfAbsent(username, user) != null) return new Response(409, null);
+		passwords.put(username, request.getString("password", PASSWORD));
+		return new Response(200, user);
+	}
+
+	/**
+	 * Apply the received attributes to the user. The password is stored apart, and null values remove the attribute.
+	 */
+	private Response patchUser(String username, JsonObject attributes) {
+		JsonObject current = users.get(username);
+		if (current == null) return new Response(404, null);
+		JsonObjectBuilder builder = createObjectBuilder(current);
+		attributes.forEach((name, value) -> {
+			if ("password".equals(name)) {
+				if (value.getValueType() == JsonValue.ValueType.STRING) passwords.put(username, ((JsonString) value).getString());
+			} else if (value.getValueType() == JsonValue.ValueType.NULL) {
+				builder.remove(name);
+			} else {
+				builder.add(name, value);
+			}
+		});
+		users.put(username, builder.build());
+		return new Response(200, null);
+	}
+
+	private Response searchUsers(HttpExchange exchange) {
+		Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+		String username = query.get("username");
+		int first = Integer.parseInt(query.getOrDefault("first", "0"));
+		int max = Integer.parseInt(query.getOrDefault("max", String.valueOf(Integer.MAX_VALUE)));
+		JsonArrayBuilder found = createArrayBuilder();
+		String email = query.get("email");
+		users.values().stream()
+				.filter(user -> username == null || user.getString("username").contains(username))
+				.filter(user -> email == null || email.equalsIgnoreCase(user.getString("email", null)))
+				.sorted((a, b) -> Integer.compare(a.getInt("id"), b.getInt("id")))
+				.skip(first)
+				.limit(max)
+				.forEach(found::add);
+		return new Response(200, found.build());
+	}
+
+	private static JsonObject readBody(HttpExchange exchange) throws IOException {
+		try (JsonReader reader = createReader(exchange.getRequestBody())) {
+			return reader.readObject();
+		}
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) {
+		Map<String, String> query = new LinkedHashMap<>();
+		if (rawQuery == null) return query;
+		for (String pair : rawQuery.split("&")) {
+			String[] nameValue = pair.split("=", 2);
+			query.put(URLDecoder.decode(nameValue[0], UTF_8), nameValue.length > 1 ? URLDecoder.decode(nameValue[1], UTF_8) : "");
+		}
+		return query;
+	}
+
+	private interface Handler {
+		Response handle(HttpExchange exchange) throws IOException;
+	}
+
+	private static class Response {
+		private final int status;
+		private final JsonStructure body;
+
+		private Response(int status, JsonStructure body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package com.identicum.keycloak;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.message.BasicNameValuePair;
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.ForkFlowException;
+
+import jakarta.json.JsonObject;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static java.lang.Math.max;
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.http.Consts.UTF_8;
+import static org.apache.http.HttpHeaders.CONTENT_TYPE;
+import static org.apache.http.entity.ContentType.APPLICATION_FORM_URLENCODED;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Keeps the OAuth2 access_token used to consume the Rest User API.
+ * The token state is an immutable {@link AccessToken} swapped atomically, concurrent refreshes are
+ * coalesced into a single request to the token endpoint and the token is renewed in background
+ * before it expires, so request threads only wait for the token endpoint when there is no valid token.
+ */
+public class AccessTokenManager {
+
+	private static final Logger logger = getLogger(AccessTokenManager.class);
+
+	private final RestConfiguration configuration;
+	private final Function<HttpRequestBase, SimpleHttpResponse> executor;
+	private final ScheduledExecutorService scheduler;
+	private final long refreshSkew;
+
+	private final AtomicReference<AccessToken> token = new AtomicReference<>();
+	private final AtomicReference<CompletableFuture<AccessToken>> inFlight = new AtomicReference<>();
+
+	/**
+	 * @param configuration Module configuration with the token endpoint and client credentials
+	 * @param executor Function executing a token request, failing if the response is not success
+	 */
+	public AccessTokenManager(RestConfiguration configuration, Function<HttpRequestBase, SimpleHttpResponse> executor) {
+		this.configuration = configuration;
+		this.executor = executor;
+		this.refreshSkew = configuration.getOauthTokenRefreshSkew() * 1000L;
+		this.scheduler = newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "rest-repo-token-refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Get a valid access_token. If the current one is about to expire, a background refresh is triggered
+	 * and the current token is returned. Only when there is no valid token the calling thread waits
+	 * for the (single) in-flight token request.
+	 */
+	public String getAccessToken() {
+		AccessToken current = token.get();
+		long now = currentTimeMillis();
+		if(current != null && !current.isExpired(now)) {
+			if(current.isExpiringSoon(now)) {
+				logger.debugv("Current access_token expires at {0}. Refreshing in background", new Date(current.getExpiresAt()));
+				refresh(current, scheduler);
+			}
+			return current.getValue();
+		}
+		logger.debug("There is no valid access_token. Waiting for a new one");
+		try {
+			return refresh(current, Runnable::run).join().getValue();
+		}
+		catch(CompletionException ce) {
+			if(ce.getCause() instanceof RuntimeException) throw (RuntimeException) ce.getCause();
+			throw ce;
+		}
+	}
+
+	/**
+	 * Mark the given access_token as expired, typically because the API rejected it.
+	 * The next call to {@link #getAccessToken()} will negotiate a new one.
+	 */
+	public void invalidate(String rejectedToken) {
+		AccessToken current = token.get();
+		if(current != null && current.getValue().equals(rejectedToken)) {
+			logger.infov("Invalidating access_token expiring at {0}", new Date(current.getExpiresAt()));
+			token.compareAndSet(current, new AccessToken(current.getValue(), current.getRefreshToken(), 0, 0));
+		}
+	}
+
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * Start a token refresh unless there is one already running, in which case the running one is returned.
+	 */
+	private CompletableFuture<AccessToken> refresh(AccessToken current, Executor refreshExecutor) {
+		CompletableFuture<AccessToken> future = new CompletableFuture<>();
+		CompletableFuture<AccessToken> running = inFlight.compareAndExchange(null, future);
+		if(running != null) {
+			logger.debug("Joining in-flight access_token request");
+			return running;
+		}
+		AccessToken latest = token.get();
+		if(latest != current && latest != null && !latest.isExpiringSoon(currentTimeMillis())) {
+			// another thread renewed the token meanwhile
+			inFlight.set(null);
+			future.complete(latest);
+			return future;
+		}
+		try {
+			refreshExecutor.execute(() -> {
+				try {
+					AccessToken renewed = fetchToken(latest);
+					token.set(renewed);
+					scheduleRefresh(renewed);
+					inFlight.set(null);
+					future.complete(renewed);
+				}
+				catch(RuntimeException re) {
+					logger.error("Error negotiating access_token", re);
+					inFlight.set(null);
+					future.completeExceptionally(re);
+				}
+			});
+		}
+		catch(RuntimeException re) {
+			// scheduler already shut down
+			inFlight.set(null);
+			future.completeExceptionally(re);
+		}
+		return future;
+	}
+
+	private void scheduleRefresh(AccessToken renewed) {
+		long delay = renewed.getExpiresAt() - renewed.getRefreshSkew() - currentTimeMillis();
+		logger.debugv("Scheduling access_token refresh in {0}ms", delay);
+		scheduler.schedule(() -> {
+			if(token.get() == renewed) refresh(renewed, Runnable::run);
+		}, max(delay, 0), MILLISECONDS);
+	}
+
+	private AccessToken fetchToken(AccessToken current) {
+		if(current != null && current.getRefreshToken() != null) {
+			try {
+				return refreshAccessToken(current.getRefreshToken());
+			}
+			catch(ForkFlowException re) {
+				logger.error("Error refreshing access token. Trying to generate a new one", re);
+			}
+		}
+		return requestAccessToken();
+	}
+
+	private AccessToken requestAccessToken() {
+		logger.infov("Current client_id: {0}", configuration.getOauthClientId());
+		logger.infov("Requesting access_token to consume Rest User API: {0}", configuration.getOauthTokenEndpoint());
+		List<NameValuePair> form = new ArrayList<>();
+		form.add(new BasicNameValuePair("grant_type", "client_credentials"));
+		form.add(new BasicNameValuePair("client_id", configuration.getOauthClientId()));
+		form.add(new BasicNameValuePair("client_secret", configuration.getOauthClientSecret()));
+		form.add(new BasicNameValuePair("scope", configuration.getOauthScope()));
+		return executeTokenRequest(form);
+	}
+
+	private AccessToken refreshAccessToken(String refreshToken) {
+		logger.infov("Refreshing access_token to consume Rest User API: {0}", configuration.getOauthTokenEndpoint());
+		List<NameValuePair> form = new ArrayList<>();
+		form.add(new BasicNameValuePair("grant_type", "refresh_token"));
+		form.add(new BasicNameValuePair("client_id", configuration.getOauthClientId()));
+		form.add(new BasicNameValuePair("client_secret", configuration.getOauthClientSecret()));
+		form.add(new BasicNameValuePair("refresh_token", refreshToken));
+		return executeTokenRequest(form);
+	}
+
+	private AccessToken executeTokenRequest(List<NameValuePair> form) {
+		HttpPost httpPost = new HttpPost(configuration.getOauthTokenEndpoint());
+		httpPost.setHeader(CONTENT_TYPE, APPLICATION_FORM_URLENCODED.getMimeType());
+		httpPost.setEntity(new UrlEncodedFormEntity(form, UTF_8));
+
+		JsonObject jsonResponse = executor.apply(httpPost).getResponseAsJsonObject();
+		long lifetime = jsonResponse.getInt("expires_in") * 1000L;
+		// tokens living less than the skew are refreshed at half their life, not on every request
+		return new AccessToken(
+				jsonResponse.getString("access_token"),
+				jsonResponse.getString("refresh_token", null),
+				currentTimeMillis() + lifetime,
+				Math.min(refreshSkew, lifetime / 2));
+	}
+
+	@Getter
+	@AllArgsConstructor
+	static class AccessToken {
+		private final String value;
+		private final String refreshToken;
+		private final long expiresAt;
+		/**
+		 * Time before the expiration from which the token is refreshed: the configured skew, at most half its lifetime.
+		 */
+		private final long refreshSkew;
+
+		boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+
+		boolean isExpiringSoon(long now) {
+			return now >= expiresAt - refreshSkew;
+		}
+	}
+}
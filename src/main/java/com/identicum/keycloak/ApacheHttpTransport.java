@@ -0,0 +1,267 @@
+package com.identicum.keycloak;
+
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Blocking transport backed by Apache HttpClient and a pool of HTTP/1.1 connections.
+ * Asynchronous calls are run on a dedicated executor sized as the connection pool.
+ * A background evictor closes pooled connections idle longer than the idle timeout, or past their
+ * time to live or the keep-alive duration announced by the API.
+ */
+public class ApacheHttpTransport implements HttpTransport {
+
+	private static final Logger logger = getLogger(ApacheHttpTransport.class);
+
+	protected CloseableHttpClient httpClient;
+
+	private static final long EVICTION_INTERVAL = 5000;
+
+	private final EvictingConnectionManager poolingHttpClientConnectionManager;
+	private final ExecutorService asyncExecutor;
+	private final ScheduledExecutorService evictor;
+	private final RestMetrics metrics;
+	private final ContentCompression compression;
+	private final long idleTimeout;
+
+	/**
+	 * @param compression Decoder of the response bodies. Automatic decompression of the client is disabled so wire bytes can be counted
+	 */
+	public ApacheHttpTransport(RestConfiguration configuration, RestMetrics metrics, ContentCompression compression) {
+		Integer maxConnections = configuration.getMaxConnections();
+		Integer socketTimeout = configuration.getApiSocketTimeout();
+		Integer connectTimeout = configuration.getApiConnectTimeout();
+		Integer connectionRequestTimeout = configuration.getApiConnectionRequestTimeout();
+		logger.infov("Initializing HTTP pool with maxConnections: {0}, connectionRequestTimeout: {1}, connectTimeout: {2}, socketTimeout: {3}", maxConnections, connectionRequestTimeout, connectTimeout, socketTimeout);
+		this.metrics = metrics;
+		this.compression = compression;
+		this.idleTimeout = SECONDS.toMillis(configuration.getConnectionIdleTimeout());
+		logger.infov("HTTP pool maxConnectionsPerRoute: {0}, idleTimeout: {1}s, timeToLive: {2}s, validateAfterInactivity: {3}ms",
+				configuration.getMaxConnectionsPerRoute(), configuration.getConnectionIdleTimeout(), configuration.getConnectionTimeToLive(), configuration.getConnectionValidateAfterInactivity());
+		this.poolingHttpClientConnectionManager = new EvictingConnectionManager(configuration.getConnectionTimeToLive(), metrics);
+		this.poolingHttpClientConnectionManager.setMaxTotal(maxConnections);
+		this.poolingHttpClientConnectionManager.setDefaultMaxPerRoute(configuration.getMaxConnectionsPerRoute());
+		this.poolingHttpClientConnectionManager.setValidateAfterInactivity(configuration.getConnectionValidateAfterInactivity());
+		this.poolingHttpClientConnectionManager.setDefaultSocketConfig(SocketConfig.custom()
+				.setSoTimeout(socketTimeout)
+				.build());
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setConnectionRequestTimeout(connectionRequestTimeout)
+				.build();
+		this.httpClient = HttpClients.custom()
+				.setDefaultRequestConfig(requestConfig)
+				.setConnectionManager(poolingHttpClientConnectionManager)
+				.setKeepAliveStrategy(this::getKeepAliveDuration)
+				.disableContentCompression()
+				.build();
+		this.asyncExecutor = newFixedThreadPool(maxConnections, runnable -> {
+			Thread thread = new Thread(runnable, "rest-repo-http");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.evictor = newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "rest-repo-pool-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long evictionInterval = idleTimeout > 0 ? Math.min(idleTimeout, EVICTION_INTERVAL) : EVICTION_INTERVAL;
+		this.evictor.scheduleWithFixedDelay(this::evictConnections, evictionInterval, evictionInterval, MILLISECONDS);
+	}
+
+	@Override
+	public SimpleHttpResponse execute(HttpRequestBase request) throws IOException {
+		CloseableHttpResponse response = null;
+		try {
+			response = httpClient.execute(request);
+			HttpEntity entity = response.getEntity();
+			Map<String, String> headers = new HashMap<>();
+			for(Header header : response.getAllHeaders()) {
+				headers.putIfAbsent(header.getName().toLowerCase(), header.getValue());
+			}
+			try(InputStream body = entity != null ? compression.decode(headers.get("content-encoding"), entity.getContent()) : null) {
+				return SimpleHttpResponse.fromStream(response.getStatusLine().getStatusCode(), headers, body);
+			}
+		}
+		finally {
+			closeQuietly(response);
+		}
+	}
+
+	@Override
+	public CompletableFuture<SimpleHttpResponse> executeAsync(HttpRequestBase request) {
+		return supplyAsync(() -> {
+			try {
+				return execute(request);
+			}
+			catch(IOException io) {
+				throw new CompletionException(io);
+			}
+		}, asyncExecutor);
+	}
+
+	@Override
+	public Map<String, Integer> getStats() {
+		HashMap<String, Integer> stats = new HashMap<>();
+		PoolStats poolStats = poolingHttpClientConnectionManager.getTotalStats();
+		stats.put("maxConnections", poolStats.getMax());
+		stats.put("defaultMaxPerRoute", poolingHttpClientConnectionManager.getDefaultMaxPerRoute());
+		stats.put("availableConnections", poolStats.getAvailable());
+		stats.put("leasedConnections", poolStats.getLeased());
+		stats.put("pendingConnections", poolStats.getPending());
+		stats.put("evictedIdleConnections", poolingHttpClientConnectionManager.evictedIdle.intValue());
+		stats.put("evictedExpiredConnections", poolingHttpClientConnectionManager.evictedExpired.intValue());
+		return stats;
+	}
+
+	@Override
+	public void close() {
+		evictor.shutdownNow();
+		asyncExecutor.shutdown();
+		try {
+			httpClient.close();
+		} catch (IOException io) {
+			logger.warn("Error closing http client", io);
+		}
+	}
+
+	/**
+	 * Keep connections alive as long as the API allows in its Keep-Alive header, and no longer than
+	 * the idle timeout, so they are not reused after a load balancer silently closed them.
+	 */
+	private long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+		long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+		if(idleTimeout <= 0) return keepAlive;
+		return keepAlive > 0 ? Math.min(keepAlive, idleTimeout) : idleTimeout;
+	}
+
+	private void evictConnections() {
+		try {
+			int expired = poolingHttpClientConnectionManager.evictExpired();
+			int idle = idleTimeout > 0 ? poolingHttpClientConnectionManager.evictIdle(idleTimeout) : 0;
+			if(expired > 0) metrics.poolEvicted("EXPIRED", expired);
+			if(idle > 0) metrics.poolEvicted("IDLE", idle);
+			if(expired + idle > 0) logger.debugv("Evicted {0} expired and {1} idle connections from HTTP pool", expired, idle);
+		} catch (RuntimeException e) {
+			logger.warn("Error evicting connections from HTTP pool", e);
+		}
+	}
+
+	/**
+	 * Close quietly a http response
+	 * @param response Response to be closed
+	 */
+	private void closeQuietly(CloseableHttpResponse response) {
+		if (response != null)
+			try {
+				response.close();
+			} catch (IOException io) {
+				logger.warn("Error closing http response", io);
+			}
+	}
+
+	/**
+	 * Connection pool timing the wait for a connection, and closing idle and expired connections
+	 * while counting them. Connections expire after their time to live, or when the keep-alive
+	 * duration of their last response elapsed.
+	 */
+	private static class EvictingConnectionManager extends PoolingHttpClientConnectionManager {
+
+		private final RestMetrics metrics;
+		private final LongAdder evictedIdle = new LongAdder();
+		private final LongAdder evictedExpired = new LongAdder();
+
+		EvictingConnectionManager(long timeToLive, RestMetrics metrics) {
+			super(timeToLive, SECONDS);
+			this.metrics = metrics;
+		}
+
+		@Override
+		public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+			ConnectionRequest connectionRequest = super.requestConnection(route, state);
+			return new ConnectionRequest() {
+				@Override
+				public HttpClientConnection get(long timeout, TimeUnit timeUnit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+					long startTime = System.nanoTime();
+					try {
+						return connectionRequest.get(timeout, timeUnit);
+					} finally {
+						metrics.poolLeased(System.nanoTime() - startTime);
+					}
+				}
+
+				@Override
+				public boolean cancel() {
+					return connectionRequest.cancel();
+				}
+			};
+		}
+
+		/**
+		 * @return number of available connections closed because they expired
+		 */
+		int evictExpired() {
+			long now = System.currentTimeMillis();
+			LongAdder evicted = new LongAdder();
+			enumAvailable(entry -> {
+				if(entry.isExpired(now)) {
+					entry.close();
+					evicted.increment();
+				}
+			});
+			evictedExpired.add(evicted.sum());
+			return evicted.intValue();
+		}
+
+		/**
+		 * @return number of available connections closed because they were idle longer than the given time
+		 */
+		int evictIdle(long idleTimeout) {
+			long deadline = System.currentTimeMillis() - idleTimeout;
+			LongAdder evicted = new LongAdder();
+			enumAvailable(entry -> {
+				if(entry.getUpdated() <= deadline) {
+					entry.close();
+					evicted.increment();
+				}
+			});
+			evictedIdle.add(evicted.sum());
+			return evicted.intValue();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.identicum.keycloak;
+
+import org.jboss.logging.Logger;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.identicum.keycloak.RestOperation.COUNT_USERS;
+import static com.identicum.keycloak.RestOperation.FIND_USERS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Limits the number of concurrent calls of each operation, so that slow operations (e.g. admin searches)
+ * can not take every pooled connection and starve the login flow. Operations without limit are not
+ * restricted. Searches and counts are limited to half of the pool unless configured otherwise.
+ */
+public class Bulkheads {
+
+	private static final Logger logger = getLogger(Bulkheads.class);
+
+	private final Map<RestOperation, Semaphore> semaphores = new EnumMap<>(RestOperation.class);
+	private final Map<RestOperation, Integer> limits = new EnumMap<>(RestOperation.class);
+	private final Map<RestOperation, LongAdder> rejections = new EnumMap<>(RestOperation.class);
+	private final long maxWait;
+
+	public Bulkheads(RestConfiguration configuration) {
+		int defaultLimit = Math.max(configuration.getMaxConnections() / 2, 1);
+		limits.put(FIND_USERS, defaultLimit);
+		limits.put(COUNT_USERS, defaultLimit);
+		configuration.getBulkheadLimits().forEach((name, limit) -> {
+			RestOperation operation = RestOperation.fromMetricName(name);
+			if (operation == null) {
+				logger.warnv("Ignoring bulkhead limit of unknown operation {0}", name);
+			} else {
+				limits.put(operation, Integer.parseInt(limit));
+			}
+		});
+		limits.forEach((operation, limit) -> {
+			if (limit > 0) {
+				semaphores.put(operation, new Semaphore(limit));
+				rejections.put(operation, new LongAdder());
+			}
+		});
+		this.maxWait = configuration.getBulkheadMaxWait();
+		logger.infov("Initializing bulkheads with limits: {0}, maxWait: {1}ms", limits, maxWait);
+	}
+
+	/**
+	 * Take a slot of the operation bulkhead, waiting at most the configured max wait for one to be released.
+	 * @return false if the bulkhead is full and the call must fail fast
+	 */
+	public boolean tryAcquire(RestOperation operation) {
+		return tryAcquire(operation, maxWait);
+	}
+
+	/**
+	 * Take a slot of the operation bulkhead without waiting, for asynchronous calls that must not block their caller.
+	 * @return false if the bulkhead is full and the call must fail fast
+	 */
+	public boolean tryAcquireNow(RestOperation operation) {
+		return tryAcquire(operation, 0);
+	}
+
+	private boolean tryAcquire(RestOperation operation, long wait) {
+		Semaphore semaphore = semaphores.get(operation);
+		if (semaphore == null) return true;
+		try {
+			if (wait <= 0 ? semaphore.tryAcquire() : semaphore.tryAcquire(wait, MILLISECONDS)) return true;
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		rejections.get(operation).increment();
+		return false;
+	}
+
+	/**
+	 * Release the slot taken by a successful {@link #tryAcquire(RestOperation)}.
+	 */
+	public void release(RestOperation operation) {
+		Semaphore semaphore = semaphores.get(operation);
+		if (semaphore != null) semaphore.release();
+	}
+
+	public Map<String, Object> getStats() {
+		HashMap<String, Object> stats = new HashMap<>();
+		semaphores.forEach((operation, semaphore) -> {
+			stats.put(operation.getMetricName() + ".available", semaphore.availablePermits());
+			stats.put(operation.getMetricName() + ".rejected", rejections.get(operation).sum());
+		});
+		return stats;
+	}
+}
@@ -0,0 +1,176 @@
+package com.identicum.keycloak;
+
+import org.jboss.logging.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Circuit breaker protecting the Rest User API. The outcome of the last calls is kept in a count based
+ * sliding window: when the rate of failed or slow calls reaches its threshold the circuit opens, and calls
+ * fail fast without reaching the API. After the open duration a few probe calls are let through
+ * (half open), and their outcome closes the circuit again or reopens it. Probes not answered within
+ * the open duration reopen the circuit too, so lost probe outcomes can not keep it half open forever.
+ */
+public class CircuitBreaker {
+
+	private static final Logger logger = getLogger(CircuitBreaker.class);
+
+	// outcomes kept in the window, as bit flags
+	private static final byte SUCCESS = 0;
+	private static final byte FAILURE = 1;
+	private static final byte SLOW = 2;
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final int failureRateThreshold;
+	private final int slowCallRateThreshold;
+	private final long slowCallDuration;
+	private final int minimumCalls;
+	private final long openDuration;
+	private final int halfOpenCalls;
+
+	// guarded by this
+	private final byte[] window;
+	private int windowIndex = 0;
+	private int calls = 0;
+	private int failures = 0;
+	private int slowCalls = 0;
+	private State state = State.CLOSED;
+	private long openedAt;
+	private long halfOpenedAt;
+	private int halfOpenPermits;
+	private int halfOpenOutcomes;
+	private long rejectedCalls = 0;
+
+	public CircuitBreaker(RestConfiguration configuration) {
+		this.failureRateThreshold = configuration.getCircuitBreakerFailureRate();
+		this.slowCallRateThreshold = configuration.getCircuitBreakerSlowCallRate();
+		this.slowCallDuration = MILLISECONDS.toNanos(configuration.getCircuitBreakerSlowCallDuration());
+		this.window = new byte[Math.max(configuration.getCircuitBreakerWindowSize(), 1)];
+		this.minimumCalls = Math.min(Math.max(configuration.getCircuitBreakerMinimumCalls(), 1), window.length);
+		this.openDuration = SECONDS.toNanos(configuration.getCircuitBreakerOpenDuration());
+		this.halfOpenCalls = Math.max(configuration.getCircuitBreakerHalfOpenCalls(), 1);
+		logger.infov("Initializing circuit breaker with failureRate: {0}%, slowCallRate: {1}%, slowCallDuration: {2}ms, windowSize: {3}",
+				failureRateThreshold, slowCallRateThreshold, configuration.getCircuitBreakerSlowCallDuration(), window.length);
+	}
+
+	public boolean isEnabled() {
+		return failureRateThreshold > 0 || slowCallRateThreshold > 0;
+	}
+
+	/**
+	 * Ask permission to call the API.
+	 * @return false if the circuit is open and the call must fail fast
+	 */
+	public synchronized boolean tryAcquire() {
+		if(!isEnabled()) return true;
+		if(state == State.OPEN && nanoTime() - openedAt >= openDuration) {
+			transitionTo(State.HALF_OPEN);
+		} else if(state == State.HALF_OPEN && nanoTime() - halfOpenedAt >= openDuration) {
+			logger.warnv("Probe calls to the API not answered after {0}s. Opening the circuit again", NANOSECONDS.toSeconds(openDuration));
+			transitionTo(State.OPEN);
+		}
+		if(state == State.CLOSED) return true;
+		if(state == State.HALF_OPEN && halfOpenPermits > 0) {
+			halfOpenPermits--;
+			return true;
+		}
+		rejectedCalls++;
+		return false;
+	}
+
+	/**
+	 * Record the outcome of a call allowed by {@link #tryAcquire()}.
+	 * @param failed Whether the API failed to answer, or answered with a server error
+	 * @param duration Nanoseconds the call took
+	 */
+	public synchronized void record(boolean failed, long duration) {
+		if(!isEnabled()) return;
+		byte outcome = (byte) ((failed ? FAILURE : SUCCESS) | (duration >= slowCallDuration ? SLOW : SUCCESS));
+		if(state == State.HALF_OPEN) {
+			if(outcome != SUCCESS) {
+				logger.warnv("Probe call to the API {0}. Opening the circuit again", failed ? "failed" : "was slow");
+				transitionTo(State.OPEN);
+			} else if(++halfOpenOutcomes >= halfOpenCalls) {
+				transitionTo(State.CLOSED);
+			}
+			return;
+		}
+		if(state == State.OPEN) {
+			// call started before the circuit opened
+			return;
+		}
+		if(calls == window.length) {
+			byte evicted = window[windowIndex];
+			if((evicted & FAILURE) != 0) failures--;
+			if((evicted & SLOW) != 0) slowCalls--;
+		} else {
+			calls++;
+		}
+		window[windowIndex] = outcome;
+		windowIndex = (windowIndex + 1) % window.length;
+		if(failed) failures++;
+		if((outcome & SLOW) != 0) slowCalls++;
+
+		if(calls >= minimumCalls) {
+			int failureRate = failures * 100 / calls;
+			int slowCallRate = slowCalls * 100 / calls;
+			if(failureRateThreshold > 0 && failureRate >= failureRateThreshold) {
+				logger.warnv("API failure rate {0}% reached threshold {1}%. Opening the circuit", failureRate, failureRateThreshold);
+				transitionTo(State.OPEN);
+			} else if(slowCallRateThreshold > 0 && slowCallRate >= slowCallRateThreshold) {
+				logger.warnv("API slow call rate {0}% reached threshold {1}%. Opening the circuit", slowCallRate, slowCallRateThreshold);
+				transitionTo(State.OPEN);
+			}
+		}
+	}
+
+	/**
+	 * Give back the permit of a call allowed by {@link #tryAcquire()} that was cancelled before its outcome was known.
+	 */
+	public synchronized void release() {
+		if(state == State.HALF_OPEN) halfOpenPermits++;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized Map<String, Object> getStats() {
+		HashMap<String, Object> stats = new HashMap<>();
+		stats.put("state", state);
+		stats.put("calls", calls);
+		stats.put("failureRate", calls == 0 ? 0 : failures * 100 / calls);
+		stats.put("slowCallRate", calls == 0 ? 0 : slowCalls * 100 / calls);
+		stats.put("rejectedCalls", rejectedCalls);
+		return stats;
+	}
+
+	private void transitionTo(State newState) {
+		logger.infov("Circuit breaker state changed from {0} to {1}", state, newState);
+		state = newState;
+		switch(newState) {
+			case OPEN:
+				openedAt = nanoTime();
+				break;
+			case HALF_OPEN:
+				halfOpenedAt = nanoTime();
+				halfOpenPermits = halfOpenCalls;
+				halfOpenOutcomes = 0;
+				break;
+			case CLOSED:
+				calls = 0;
+				failures = 0;
+				slowCalls = 0;
+				windowIndex = 0;
+				break;
+		}
+	}
+}
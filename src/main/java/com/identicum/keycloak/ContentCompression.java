@@ -0,0 +1,203 @@
+package com.identicum.keycloak;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.jboss.logging.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.apache.http.HttpHeaders.ACCEPT_ENCODING;
+import static org.apache.http.HttpHeaders.CONTENT_ENCODING;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Compression of the traffic with the API. Responses are requested gzip or deflate encoded, and decoded
+ * while they are read by the JSON parser. Request bodies above the threshold are sent gzip encoded.
+ * Bytes are counted both as sent on the wire and decoded, to measure the bandwidth saved.
+ */
+public class ContentCompression {
+
+	private static final Logger logger = getLogger(ContentCompression.class);
+
+	private static final String GZIP = "gzip";
+	private static final String X_GZIP = "x-gzip";
+	private static final String DEFLATE = "deflate";
+	private static final String IDENTITY = "identity";
+	private static final String ACCEPTED_ENCODINGS = GZIP + ", " + DEFLATE;
+
+	private final boolean responseCompression;
+	private final int requestCompressionThreshold;
+
+	private final LongAdder responseWireBytes = new LongAdder();
+	private final LongAdder responseDecodedBytes = new LongAdder();
+	private final LongAdder compressedResponses = new LongAdder();
+	private final LongAdder requestWireBytes = new LongAdder();
+	private final LongAdder requestRawBytes = new LongAdder();
+	private final LongAdder compressedRequests = new LongAdder();
+
+	public ContentCompression(RestConfiguration configuration) {
+		this.responseCompression = configuration.getResponseCompression();
+		this.requestCompressionThreshold = configuration.getRequestCompressionThreshold();
+		logger.infov("Initializing compression with responseCompression: {0}, requestCompressionThreshold: {1}", responseCompression, requestCompressionThreshold);
+	}
+
+	/**
+	 * Announce the encodings the responses can be decoded from.
+	 */
+	public void acceptEncoding(HttpRequest request) {
+		if(responseCompression && !request.containsHeader(ACCEPT_ENCODING)) {
+			request.setHeader(ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+		}
+	}
+
+	/**
+	 * Set the body of a request, gzip encoded if it is larger than the request compression threshold.
+	 */
+	public void setEntity(HttpEntityEnclosingRequest request, byte[] body) {
+		requestRawBytes.add(body.length);
+		if(requestCompressionThreshold <= 0 || body.length < requestCompressionThreshold) {
+			requestWireBytes.add(body.length);
+			request.setEntity(new ByteArrayEntity(body));
+			return;
+		}
+		byte[] compressed = gzip(body);
+		requestWireBytes.add(compressed.length);
+		compressedRequests.increment();
+		request.setHeader(CONTENT_ENCODING, GZIP);
+		request.setEntity(new ByteArrayEntity(compressed));
+	}
+
+	/**
+	 * Wrap a response body to decode it while it is read.
+	 * @param contentEncoding Value of the Content-Encoding header received, null if the body is not encoded
+	 * @param body Body as received, may be null
+	 * @throws IOException if the encoding is not supported, or the body is not a valid stream of it
+	 */
+	public InputStream decode(String contentEncoding, InputStream body) throws IOException {
+		if(body == null) return null;
+		InputStream wire = new CountingInputStream(body, responseWireBytes);
+		String encoding = contentEncoding != null ? contentEncoding.trim().toLowerCase() : IDENTITY;
+		if(encoding.isEmpty() || IDENTITY.equals(encoding)) {
+			return new CountingInputStream(wire, responseDecodedBytes);
+		}
+		// an encoded body may still be empty, e.g. in a 304 response
+		PushbackInputStream stream = new PushbackInputStream(wire, 2);
+		byte[] header = stream.readNBytes(2);
+		if(header.length == 0) return stream;
+		stream.unread(header);
+		compressedResponses.increment();
+		switch(encoding) {
+			case GZIP:
+			case X_GZIP:
+				return new CountingInputStream(new GZIPInputStream(stream), responseDecodedBytes);
+			case DEFLATE:
+				// deflate should be zlib wrapped, but some servers send raw deflate data
+				Inflater inflater = new Inflater(!isZlibHeader(header));
+				return new CountingInputStream(new InflaterInputStream(stream, inflater) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						}
+						finally {
+							inflater.end();
+						}
+					}
+				}, responseDecodedBytes);
+			default:
+				throw new IOException("Unsupported response content encoding: " + contentEncoding);
+		}
+	}
+
+	public long getResponseWireBytes() {
+		return responseWireBytes.sum();
+	}
+
+	public long getResponseDecodedBytes() {
+		return responseDecodedBytes.sum();
+	}
+
+	public long getRequestWireBytes() {
+		return requestWireBytes.sum();
+	}
+
+	public long getRequestRawBytes() {
+		return requestRawBytes.sum();
+	}
+
+	public Map<String, Long> getStats() {
+		HashMap<String, Long> stats = new HashMap<>();
+		stats.put("responseWireBytes", responseWireBytes.sum());
+		stats.put("responseDecodedBytes", responseDecodedBytes.sum());
+		stats.put("compressedResponses", compressedResponses.sum());
+		stats.put("requestWireBytes", requestWireBytes.sum());
+		stats.put("requestRawBytes", requestRawBytes.sum());
+		stats.put("compressedRequests", compressedRequests.sum());
+		return stats;
+	}
+
+	private static boolean isZlibHeader(byte[] header) {
+		if(header.length < 2) return false;
+		int cmf = header[0] & 0xff;
+		int flg = header[1] & 0xff;
+		return (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+	}
+
+	private static byte[] gzip(byte[] body) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length / 4 + 32);
+		try(GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+			gzip.write(body);
+		}
+		catch(IOException io) {
+			throw new UncheckedIOException(io);
+		}
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Stream adding the bytes read to a counter.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		private final LongAdder counter;
+
+		CountingInputStream(InputStream in, LongAdder counter) {
+			super(in);
+			this.counter = counter;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			if(read != -1) counter.increment();
+			return read;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if(read > 0) counter.add(read);
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			if(skipped > 0) counter.add(skipped);
+			return skipped;
+		}
+	}
+}
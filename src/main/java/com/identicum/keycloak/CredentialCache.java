@@ -0,0 +1,187 @@
+package com.identicum.keycloak;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.jboss.logging.Logger;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.System.currentTimeMillis;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Node-wide cache of the passwords recently validated by the API, to absorb repeated logins of the
+ * same users. Only a PBKDF2 hash of each password is kept, with a random salt per entry, and only
+ * successful validations are cached: wrong passwords are always sent to the API.
+ * Each invalidation bumps a per-user generation, so a validation started before a password change can not
+ * cache the old password once the change is done.
+ */
+public class CredentialCache {
+
+	private static final Logger logger = getLogger(CredentialCache.class);
+
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final int ITERATIONS = 10000;
+	private static final int SALT_LENGTH = 16;
+	private static final int HASH_LENGTH = 256;
+	private static final int EVICTION_SAMPLE_SIZE = 16;
+	// generations are striped by username hash, a collision only makes a validation skip the cache
+	private static final int GENERATION_STRIPES = 1024;
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final SecureRandom random = new SecureRandom();
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+	private final int maxSize;
+	private final long ttl;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public CredentialCache(RestConfiguration configuration) {
+		this.maxSize = configuration.getCredentialCacheMaxSize();
+		this.ttl = configuration.getCredentialCacheTtl() * 1000L;
+		logger.infov("Initializing credential cache with maxSize: {0}, ttl: {1}ms", maxSize, ttl);
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0 && ttl > 0;
+	}
+
+	/**
+	 * Check a password against the last one validated by the API for the user.
+	 * @return true if the password matches a cached validation; false if it does not match, or it is not cached
+	 */
+	public boolean verify(String username, String password) {
+		if(!isEnabled() || username == null || password == null) return false;
+		Entry entry = entries.get(username);
+		if(entry != null && entry.isExpired(currentTimeMillis())) {
+			entries.remove(username, entry);
+			entry = null;
+		}
+		if(entry != null && MessageDigest.isEqual(entry.getHash(), hash(password, entry.getSalt()))) {
+			hits.increment();
+			return true;
+		}
+		misses.increment();
+		return false;
+	}
+
+	/**
+	 * Get the current generation of the credentials of a user, to be taken before asking the API to validate a password.
+	 */
+	public long generation(String username) {
+		return username == null ? 0 : generations.get(stripe(username));
+	}
+
+	/**
+	 * Cache a password just validated by the API. It is dropped if the credentials of the user
+	 * were invalidated since the validation started.
+	 * @param generation Generation of the credentials taken before the validation
+	 */
+	public void put(String username, String password, long generation) {
+		if(!isEnabled() || username == null || password == null) return;
+		if(generations.get(stripe(username)) != generation) return;
+		byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		Entry entry = new Entry(salt, hash(password, salt), currentTimeMillis() + ttl);
+		entries.put(username, entry);
+		// checked again after the put: an invalidation running meanwhile either removes the entry, or is seen here
+		if(generations.get(stripe(username)) != generation) {
+			entries.remove(username, entry);
+			return;
+		}
+		evictIfNeeded();
+	}
+
+	/**
+	 * Forget the validated password of a user, after its credentials were updated or it was removed.
+	 */
+	public void invalidate(String username) {
+		if(!isEnabled() || username == null) return;
+		logger.debugv("Invalidating credential of user {0} from cache", username);
+		generations.incrementAndGet(stripe(username));
+		entries.remove(username);
+	}
+
+	private static int stripe(String username) {
+		return (username.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public Map<String, Long> getStats() {
+		HashMap<String, Long> stats = new HashMap<>();
+		stats.put("size", (long) entries.size());
+		stats.put("maxSize", (long) maxSize);
+		stats.put("hits", hits.sum());
+		stats.put("misses", misses.sum());
+		stats.put("evictions", evictions.sum());
+		return stats;
+	}
+
+	private static byte[] hash(String password, byte[] salt) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, HASH_LENGTH);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		}
+		catch(GeneralSecurityException gse) {
+			throw new IllegalStateException("Error hashing credential", gse);
+		}
+		finally {
+			spec.clearPassword();
+		}
+	}
+
+	private void evictIfNeeded() {
+		while(entries.size() > maxSize) {
+			long now = currentTimeMillis();
+			Map.Entry<String, Entry> eldest = null;
+			int sampled = 0;
+			for(Map.Entry<String, Entry> candidate : entries.entrySet()) {
+				if(candidate.getValue().isExpired(now)) {
+					entries.remove(candidate.getKey(), candidate.getValue());
+					continue;
+				}
+				if(eldest == null || candidate.getValue().getExpiresAt() < eldest.getValue().getExpiresAt()) {
+					eldest = candidate;
+				}
+				if(++sampled >= EVICTION_SAMPLE_SIZE) break;
+			}
+			if(eldest != null && entries.remove(eldest.getKey(), eldest.getValue())) {
+				evictions.increment();
+			}
+		}
+	}
+
+	@Getter
+	@AllArgsConstructor
+	private static class Entry {
+		private final byte[] salt;
+		private final byte[] hash;
+		private final long expiresAt;
+
+		public boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+	}
+}
@@ -3,18 +3,15 @@ package com.identicum.keycloak;
 import lombok.AllArgsConstructor;
 import org.jboss.logging.Logger;
 
-import java.util.TimerTask;
-
 @AllArgsConstructor
-public class HttpStats extends TimerTask {
-
-    public static final Integer TO_MILLISECONDS = 1000;
+public class HttpStats implements Runnable {
 
     private Logger logger;
     private RestHandler restHandler;
+    private String componentName;
 
     @Override
     public void run() {
-        logger.infov("HTTP pool stats: {0}", restHandler.getStats().toString());
+        logger.infov("HTTP pool stats of {0}: {1}", componentName, restHandler.getStats().toString());
     }
 }
@@ -0,0 +1,31 @@
+package com.identicum.keycloak;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Engine used by {@link RestHandler} to send requests to the Rest User API.
+ * Requests are always built as Apache {@link HttpRequestBase} objects, each transport translates
+ * them to its own client.
+ */
+public interface HttpTransport {
+
+	/**
+	 * Execute the request blocking the calling thread until the whole response is received.
+	 * @throws IOException on any connection or timeout error
+	 */
+	SimpleHttpResponse execute(HttpRequestBase request) throws IOException;
+
+	/**
+	 * Execute the request without blocking the calling thread.
+	 * @return future completed with the response, or exceptionally with the {@link IOException} received
+	 */
+	CompletableFuture<SimpleHttpResponse> executeAsync(HttpRequestBase request);
+
+	Map<String, Integer> getStats();
+
+	void close();
+}
@@ -0,0 +1,75 @@
+package com.identicum.keycloak;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.UserModelDelegate;
+
+import java.util.List;
+
+import static com.identicum.keycloak.RestUser.ACTIVE;
+import static java.lang.String.valueOf;
+
+/**
+ * User imported into the Keycloak local storage, in import mode. Reads are served by the local user,
+ * and attribute changes are stored locally and sent to the API with a single PATCH when the transaction commits.
+ */
+public class ImportedRestUser extends UserModelDelegate {
+
+	private final PendingUserUpdate update;
+
+	public ImportedRestUser(KeycloakSession session, UserModel delegate, RestHandler handler, UserCache userCache) {
+		super(delegate);
+		this.update = new PendingUserUpdate(session, this::getUsername);
+		update.setHandler(handler);
+		update.setUserCache(userCache);
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		super.setEnabled(enabled);
+		setUserAttribute(ACTIVE, valueOf(enabled));
+	}
+
+	@Override
+	public void setFirstName(String firstName) {
+		super.setFirstName(firstName);
+		setUserAttribute(FIRST_NAME, firstName);
+	}
+
+	@Override
+	public void setLastName(String lastName) {
+		super.setLastName(lastName);
+		setUserAttribute(LAST_NAME, lastName);
+	}
+
+	@Override
+	public void setEmail(String email) {
+		super.setEmail(email);
+		setUserAttribute(EMAIL, email);
+	}
+
+	@Override
+	public void setSingleAttribute(String name, String value) {
+		super.setSingleAttribute(name, value);
+		setUserAttribute(name, value);
+	}
+
+	@Override
+	public void setAttribute(String name, List<String> values) {
+		super.setAttribute(name, values);
+		if (values != null && !values.isEmpty()) {
+			setUserAttribute(name, values.get(0));
+		}
+	}
+
+	private void setUserAttribute(String attribute, String value) {
+		update.setUserAttribute(attribute, value);
+	}
+
+	/**
+	 * Send pending attribute changes to the API with a single PATCH request.
+	 */
+	public void flush() {
+		update.flush();
+	}
+}
@@ -0,0 +1,271 @@
+package com.identicum.keycloak;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.util.EntityUtils;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.net.http.HttpClient.Version.HTTP_1_1;
+import static java.net.http.HttpClient.Version.HTTP_2;
+import static java.net.http.HttpRequest.BodyPublishers.noBody;
+import static java.net.http.HttpRequest.BodyPublishers.ofByteArray;
+import static java.util.concurrent.CompletableFuture.failedFuture;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.function.Function.identity;
+import static org.apache.http.HttpHeaders.CONTENT_ENCODING;
+import static org.apache.http.HttpHeaders.CONTENT_TYPE;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Non-blocking transport backed by the JDK {@link HttpClient}. Asynchronous calls do not hold any
+ * thread while waiting for the API: their bodies are parsed as they are received, on a pool of
+ * max connections threads. The JDK client has no connection pool limit, so in-flight requests are
+ * capped at max connections instead. Requests beyond the cap are queued, without holding a thread,
+ * and started when a slot is released. They fail if no slot is free after the connection request timeout.
+ */
+public class JavaHttpTransport implements HttpTransport {
+
+	private static final Logger logger = getLogger(JavaHttpTransport.class);
+
+	// headers managed by the JDK client, which refuses to send them
+	private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host", "upgrade");
+
+	private final HttpClient httpClient;
+	private final ExecutorService bodyExecutor;
+	// requests waiting for a slot, in arrival order, and slots free. Guarded by this
+	private final Deque<CompletableFuture<Void>> waitingRequests = new ArrayDeque<>();
+	private int freeSlots;
+	private final int maxConnections;
+	private final long connectionRequestTimeout;
+	private final Duration requestTimeout;
+	private final ContentCompression compression;
+	private final AtomicInteger inFlightRequests = new AtomicInteger();
+	private final AtomicInteger peakInFlightRequests = new AtomicInteger();
+	private final AtomicInteger http2Responses = new AtomicInteger();
+	private final AtomicInteger http11Responses = new AtomicInteger();
+
+	/**
+	 * @param compression Decoder of the response bodies, which the JDK client does not decompress
+	 */
+	public JavaHttpTransport(RestConfiguration configuration, ContentCompression compression) {
+		Integer socketTimeout = configuration.getApiSocketTimeout();
+		Integer connectTimeout = configuration.getApiConnectTimeout();
+		HttpClient.Version version = configuration.isHttp2() ? HTTP_2 : HTTP_1_1;
+		this.maxConnections = configuration.getMaxConnections();
+		this.connectionRequestTimeout = configuration.getApiConnectionRequestTimeout();
+		logger.infov("Initializing JDK HTTP client with version: {0}, maxInFlightRequests: {1}, connectionRequestTimeout: {2}, connectTimeout: {3}, socketTimeout: {4}",
+				version, maxConnections, connectionRequestTimeout, connectTimeout, socketTimeout);
+		this.freeSlots = maxConnections;
+		this.bodyExecutor = newFixedThreadPool(maxConnections, runnable -> {
+			Thread thread = new Thread(runnable, "rest-repo-http-body");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.requestTimeout = Duration.ofMillis(socketTimeout);
+		this.compression = compression;
+		this.httpClient = HttpClient.newBuilder()
+				.version(version)
+				.connectTimeout(Duration.ofMillis(connectTimeout))
+				.build();
+	}
+
+	@Override
+	public SimpleHttpResponse execute(HttpRequestBase request) throws IOException {
+		HttpRequest httpRequest = toHttpRequest(request);
+		try {
+			takeSlot().join();
+		}
+		catch(CompletionException ce) {
+			throw slotTimeout();
+		}
+		requestStarted();
+		try {
+			HttpResponse<InputStream> response = httpClient.send(httpRequest, BodyHandlers.ofInputStream());
+			try(InputStream body = decode(response, response.body())) {
+				return toSimpleHttpResponse(response, body);
+			}
+		}
+		catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + request.getURI());
+		}
+		finally {
+			requestFinished();
+		}
+	}
+
+	@Override
+	public CompletableFuture<SimpleHttpResponse> executeAsync(HttpRequestBase request) {
+		HttpRequest httpRequest;
+		try {
+			httpRequest = toHttpRequest(request);
+		}
+		catch(IOException io) {
+			return failedFuture(io);
+		}
+		CompletableFuture<Void> slot = takeSlot();
+		// aborting a request still waiting for its slot drops it from the queue
+		request.setCancellable(() -> slot.cancel(false));
+		return slot.handle((granted, error) -> error != null
+				? CompletableFuture.<SimpleHttpResponse>failedFuture(error instanceof CancellationException ? error : slotTimeout())
+				: sendAsync(request, httpRequest)).thenCompose(identity());
+	}
+
+	private CompletableFuture<SimpleHttpResponse> sendAsync(HttpRequestBase request, HttpRequest httpRequest) {
+		requestStarted();
+		CompletableFuture<HttpResponse<InputStream>> exchange;
+		try {
+			exchange = httpClient.sendAsync(httpRequest, BodyHandlers.ofInputStream());
+		}
+		catch(RuntimeException re) {
+			requestFinished();
+			return failedFuture(re);
+		}
+		// aborting the request cancels the exchange, e.g. the losing request of a hedged lookup
+		request.setCancellable(() -> exchange.cancel(true));
+		// the body is parsed while it is received, without buffering it whole
+		return exchange
+				.thenApplyAsync(response -> {
+					try {
+						try(InputStream body = decode(response, response.body())) {
+							return toSimpleHttpResponse(response, body);
+						}
+					}
+					catch(IOException io) {
+						throw new CompletionException(io);
+					}
+				}, bodyExecutor)
+				.whenComplete((response, error) -> requestFinished());
+	}
+
+	@Override
+	public Map<String, Integer> getStats() {
+		HashMap<String, Integer> stats = new HashMap<>();
+		// with HTTP/2 each in-flight request is a stream multiplexed over the shared connections
+		stats.put("inFlightRequests", inFlightRequests.get());
+		stats.put("maxInFlightRequests", maxConnections);
+		stats.put("peakInFlightRequests", peakInFlightRequests.get());
+		stats.put("http2Responses", http2Responses.get());
+		stats.put("http11Responses", http11Responses.get());
+		return stats;
+	}
+
+	@Override
+	public void close() {
+		// JDK 17 client has no explicit close: connections are released once the client is unreachable
+		bodyExecutor.shutdown();
+	}
+
+	/**
+	 * Take a request slot, or queue the request until one is released.
+	 * @return future completed once the slot is taken, or exceptionally after the connection request timeout
+	 */
+	private CompletableFuture<Void> takeSlot() {
+		CompletableFuture<Void> slot = new CompletableFuture<>();
+		synchronized(this) {
+			if(freeSlots > 0) {
+				freeSlots--;
+				slot.complete(null);
+				return slot;
+			}
+			waitingRequests.add(slot);
+		}
+		slot.orTimeout(connectionRequestTimeout, MILLISECONDS).whenComplete((granted, error) -> {
+			if(error != null) {
+				synchronized(this) {
+					waitingRequests.remove(slot);
+				}
+			}
+		});
+		return slot;
+	}
+
+	/**
+	 * Give the slot to the next request still waiting for one, or free it.
+	 */
+	private void releaseSlot() {
+		while(true) {
+			CompletableFuture<Void> next;
+			synchronized(this) {
+				next = waitingRequests.poll();
+				if(next == null) {
+					freeSlots++;
+					return;
+				}
+			}
+			// false if it timed out or was aborted meanwhile
+			if(next.complete(null)) return;
+		}
+	}
+
+	private ConnectionPoolTimeoutException slotTimeout() {
+		return new ConnectionPoolTimeoutException("Timeout waiting for one of " + maxConnections + " in-flight request slots");
+	}
+
+	private void requestStarted() {
+		peakInFlightRequests.accumulateAndGet(inFlightRequests.incrementAndGet(), Math::max);
+	}
+
+	private void requestFinished() {
+		inFlightRequests.decrementAndGet();
+		releaseSlot();
+	}
+
+	private HttpRequest toHttpRequest(HttpRequestBase request) throws IOException {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(request.getURI()).timeout(requestTimeout);
+		for(Header header : request.getAllHeaders()) {
+			if(!RESTRICTED_HEADERS.contains(header.getName().toLowerCase())) {
+				builder.setHeader(header.getName(), header.getValue());
+			}
+		}
+		HttpRequest.BodyPublisher body = noBody();
+		if(request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).getEntity() != null) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+			if(!request.containsHeader(CONTENT_TYPE) && entity.getContentType() != null) {
+				builder.setHeader(CONTENT_TYPE, entity.getContentType().getValue());
+			}
+			body = ofByteArray(EntityUtils.toByteArray(entity));
+		}
+		return builder.method(request.getMethod(), body).build();
+	}
+
+	private InputStream decode(HttpResponse<?> response, InputStream body) throws IOException {
+		return compression.decode(response.headers().firstValue(CONTENT_ENCODING).orElse(null), body);
+	}
+
+	private SimpleHttpResponse toSimpleHttpResponse(HttpResponse<?> response, InputStream body) throws IOException {
+		if(response.version() == HTTP_2) {
+			http2Responses.incrementAndGet();
+		} else {
+			http11Responses.incrementAndGet();
+		}
+		Map<String, String> headers = new HashMap<>();
+		response.headers().map().forEach((name, values) -> {
+			if(!values.isEmpty()) headers.putIfAbsent(name.toLowerCase(), values.get(0));
+		});
+		return SimpleHttpResponse.fromStream(response.statusCode(), headers, body);
+	}
+}
@@ -1,6 +1,7 @@
 package com.identicum.keycloak;
 
 import org.jboss.logging.Logger;
+import org.keycloak.authentication.ForkFlowException;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.credential.CredentialInput;
 import org.keycloak.credential.CredentialInputUpdater;
@@ -11,20 +12,24 @@ import jakarta.json.JsonObject;
 import org.keycloak.models.*;
 import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.storage.StorageId;
+import org.keycloak.storage.UserStoragePrivateUtil;
 import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.user.ImportedUserValidation;
 import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
 import org.keycloak.storage.user.UserRegistrationProvider;
 
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import static com.identicum.keycloak.RestConfiguration.IMPORT_MODE;
+import static com.identicum.keycloak.RestConfiguration.IMPORT_VALIDATION;
 import static com.identicum.keycloak.RestUserAdapter.randomPassword;
 import static java.lang.Integer.MAX_VALUE;
-import static java.lang.Math.min;
 import static org.jboss.logging.Logger.getLogger;
 import static org.keycloak.models.credential.PasswordCredentialModel.TYPE;
 
@@ -33,7 +38,8 @@ public class KeycloakRestRepoProvider implements CredentialInputValidator,
 												 UserStorageProvider,
 												 UserLookupProvider,
 												 UserQueryProvider,
-												 UserRegistrationProvider {
+												 UserRegistrationProvider,
+												 ImportedUserValidation {
 
 	private static final Logger logger = getLogger(KeycloakRestRepoProvider.class);
 
@@ -45,21 +51,75 @@ public class KeycloakRestRepoProvider implements CredentialInputValidator,
 
 	protected RestHandler restHandler;
 
-	public KeycloakRestRepoProvider(KeycloakSession session, ComponentModel model, RestHandler restHandler) {
+	// node-wide cache of users shared by every session
+	protected UserCache userCache;
+
+	// groups concurrent lookups of every session in bulk requests, null when disabled
+	protected UserLookupBatcher lookupBatcher;
+
+	// node-wide cache of validated passwords, null when not created by the factory
+	protected CredentialCache credentialCache;
+
+	// shared resources retained by this provider, released when the session is closed
+	protected RestComponent component;
+
+	// users are imported into the local storage, which serves lookups and searches
+	protected boolean importMode;
+	// imported users are checked against the API when loaded
+	protected boolean importValidation;
+
+	public KeycloakRestRepoProvider(KeycloakSession session, ComponentModel model, RestComponent component) {
+		this(session, model, component.getRestHandler(), component.getUserCache(), component.getLookupBatcher());
+		this.credentialCache = component.getCredentialCache();
+		this.component = component;
+	}
+
+	public KeycloakRestRepoProvider(KeycloakSession session, ComponentModel model, RestHandler restHandler, UserCache userCache, UserLookupBatcher lookupBatcher) {
 		logger.info("Initializing new RestRepoProvider");
 		this.session = session;
 		this.model = model;
 		this.restHandler = restHandler;
+		this.userCache = userCache;
+		this.lookupBatcher = lookupBatcher;
+		this.importMode = Boolean.parseBoolean(model.get(IMPORT_MODE));
+		this.importValidation = Boolean.parseBoolean(model.get(IMPORT_VALIDATION));
 	}
 
 	@Override
 	public void close() {
+		if(component != null) {
+			component.release();
+			component = null;
+		}
 	}
 
 	@Override
 	public UserModel getUserByEmail(RealmModel realm, String email) {
 		logger.infov("Getting user: {0} by email", email);
-		return this.getUser(email, realm);
+		Map<String, String> query = restHandler.toQueryParameters(Map.of(UserModel.EMAIL, email), true);
+		if (query == null) {
+			return this.getUser(email, realm);
+		}
+
+		String cacheKey = UserCache.emailKey(email);
+		RestUserAdapter adapter = loadedUsers.get(cacheKey);
+		if (adapter != null) {
+			logger.debugv("Returning user {0} from transaction cache", email);
+			return adapter;
+		}
+		RestUser user = lookup(cacheKey,
+				previous -> VersionedUser.of(findByEmail(email, restHandler.findUsers(query, 0, 2))),
+				previous -> restHandler.findUsersAsync(query, 0, 2).thenApply(users -> VersionedUser.of(findByEmail(email, users))));
+		if (user == null) {
+			logger.debugv("User with email {0} not found in repo", email);
+			return null;
+		}
+		if (importMode) {
+			return importUser(realm, user);
+		}
+		adapter = createAdapter(realm, user);
+		loadedUsers.put(cacheKey, adapter);
+		return adapter;
 	}
 
 	@Override
@@ -78,17 +138,140 @@ public class KeycloakRestRepoProvider implements CredentialInputValidator,
 		logger.debugv("Cache size is: {0}", loadedUsers.size());
 
 		RestUserAdapter adapter = loadedUsers.get(query);
-		if (adapter == null) {
-			JsonObject userJson = this.restHandler.findUserByUsername(query);
-			if (userJson == null) {
-				logger.debugv("User {0} not found in repo", query);
+		if (adapter != null) {
+			logger.debugv("Returning user {0} from transaction cache", query);
+			return adapter;
+		}
+
+		RestUser user = lookup(query,
+				previous -> findUser(query, previous),
+				previous -> findUserAsync(query, previous));
+		if (user == null) {
+			logger.debugv("User {0} not found in repo", query);
+			return null;
+		}
+		if (importMode) {
+			return importUser(realm, user);
+		}
+		adapter = createAdapter(realm, user);
+		loadedUsers.put(query, adapter);
+		return adapter;
+	}
+
+	/**
+	 * Find a user in the node cache, or in the API if it is not cached. Expired users still in their
+	 * stale grace period are returned right away and refreshed in background, so lookups do not
+	 * depend on the API being available. Expired users with validators are revalidated, and kept
+	 * when the API answers they were not modified.
+	 *
+	 * @param cacheKey Key of the user in the node cache
+	 * @param loader Function finding the user in the API, given the expired entry to revalidate, if any
+	 * @param asyncLoader Function starting the background refresh of the user, given the stale entry
+	 * @return the user found, decoded and shared with the node cache, or null if it does not exist
+	 */
+	private RestUser lookup(String cacheKey, Function<UserCache.Entry, VersionedUser> loader, Function<UserCache.Entry, CompletableFuture<VersionedUser>> asyncLoader) {
+		UserCache.Entry cached = userCache.get(cacheKey);
+		if (cached != null) {
+			logger.debugv("Returning user {0} from node cache", cacheKey);
+			return cached.getUser();
+		}
+		UserCache.Entry stale = userCache.getStale(cacheKey);
+		if (stale != null) {
+			logger.debugv("Returning stale user {0} from node cache", cacheKey);
+			userCache.refreshAsync(cacheKey, () -> asyncLoader.apply(stale));
+			return stale.getUser();
+		}
+		UserCache.Entry previous = userCache.getRevalidatable(cacheKey);
+		long stamp = userCache.stamp();
+		VersionedUser version = loader.apply(previous);
+		if (version.isNotModified()) {
+			logger.debugv("User {0} not modified since it was cached", cacheKey);
+		}
+		return userCache.put(cacheKey, version, previous, stamp);
+	}
+
+	/**
+	 * Find a user by username or id, revalidating the cached version if given. Lookups grouped
+	 * in bulk requests are not conditional.
+	 */
+	private VersionedUser findUser(String query, UserCache.Entry previous) {
+		if (lookupBatcher != null) {
+			return VersionedUser.of(lookupBatcher.lookup(query));
+		}
+		return restHandler.findUserByUsername(query, etag(previous), lastModified(previous));
+	}
+
+	private CompletableFuture<VersionedUser> findUserAsync(String query, UserCache.Entry previous) {
+		if (lookupBatcher != null) {
+			return lookupBatcher.lookupAsync(query).thenApply(VersionedUser::of);
+		}
+		return restHandler.findUserByUsernameAsync(query, etag(previous), lastModified(previous));
+	}
+
+	private static String etag(UserCache.Entry entry) {
+		return entry != null ? entry.getEtag() : null;
+	}
+
+	private static String lastModified(UserCache.Entry entry) {
+		return entry != null ? entry.getLastModified() : null;
+	}
+
+	private JsonObject findByEmail(String email, JsonArray users) {
+		return users.getValuesAs(JsonObject.class).stream()
+				.filter(user -> email.equalsIgnoreCase(user.getString("email", null)))
+				.findFirst()
+				.orElse(null);
+	}
+
+	/**
+	 * Import a user found in the API into the local storage, so next lookups are served by Keycloak.
+	 * @return the imported user, or null if there is a local user with the same username not linked to this component
+	 */
+	private UserModel importUser(RealmModel realm, RestUser restUser) {
+		String username = restUser.getUsername();
+		UserProvider localStorage = UserStoragePrivateUtil.userLocalStorage(session);
+		UserModel user = localStorage.getUserByUsername(realm, username);
+		if (user == null) {
+			logger.infov("Importing user {0} into local storage", username);
+			user = localStorage.addUser(realm, username);
+			user.setFederationLink(model.getId());
+		} else if (!model.getId().equals(user.getFederationLink())) {
+			logger.warnv("User {0} already exists and is not linked to component {1}", username, model.getName());
+			return null;
+		}
+		UserSynchronizer.copyAttributes(restUser, user);
+		return new ImportedRestUser(session, user, restHandler, userCache);
+	}
+
+	/**
+	 * Users imported in import mode are served by the local storage. Their updates are still sent to the API.
+	 * With import validation, users no longer found in the API, as seen through the node cache, are not valid
+	 * anymore and are removed by Keycloak from the local storage. If the API can not be reached the local user is kept.
+	 */
+	@Override
+	public UserModel validate(RealmModel realm, UserModel user) {
+		if (!importMode) return user;
+		if (!importValidation) return new ImportedRestUser(session, user, restHandler, userCache);
+		String username = user.getUsername();
+		try {
+			if (lookup(username, previous -> findUser(username, previous), previous -> findUserAsync(username, previous)) == null) {
+				logger.infov("Imported user {0} no longer exists in repo", username);
 				return null;
 			}
-			adapter = new RestUserAdapter(session, realm, model, userJson);
-			adapter.setHandler(this.restHandler);
-		} else {
-			logger.debugv("Returning user {0} from cache", query);
+		} catch (ForkFlowException e) {
+			logger.warnv("Could not validate imported user {0}, keeping local user", username);
 		}
+		return new ImportedRestUser(session, user, restHandler, userCache);
+	}
+
+	private RestUserAdapter createAdapter(RealmModel realm, JsonObject userJson) {
+		return createAdapter(realm, RestUser.of(model.getId(), userJson));
+	}
+
+	private RestUserAdapter createAdapter(RealmModel realm, RestUser user) {
+		RestUserAdapter adapter = new RestUserAdapter(session, realm, model, user);
+		adapter.setHandler(restHandler);
+		adapter.setUserCache(userCache);
 		return adapter;
 	}
 
@@ -104,8 +287,16 @@ public class KeycloakRestRepoProvider implements CredentialInputValidator,
 	public boolean isValid(RealmModel realm, UserModel user, CredentialInput input) {
 		logger.infov("Identicum - Validating user {0}", user.getUsername());
 		if (!supportsCredentialType(input.getType()) || !(input instanceof UserCredentialModel)) return false;
-		logger.infov("Identicum - Credential {0}", input.getChallengeResponse());
-		return restHandler.authenticate(user.getUsername(), input.getChallengeResponse());
+		if (credentialCache != null && credentialCache.verify(user.getUsername(), input.getChallengeResponse())) {
+			logger.debugv("Credential of user {0} validated by node cache", user.getUsername());
+			return true;
+		}
+		long generation = credentialCache != null ? credentialCache.generation(user.getUsername()) : 0;
+		boolean valid = restHandler.authenticate(user.getUsername(), input.getChallengeResponse());
+		if (valid && credentialCache != null) {
+			credentialCache.put(user.getUsername(), input.getChallengeResponse(), generation);
+		}
+		return valid;
 	}
 
 	/**
@@ -118,14 +309,31 @@ public class KeycloakRestRepoProvider implements CredentialInputValidator,
 
 	@Override
 	public boolean updateCredential(RealmModel realmModel, UserModel userModel, CredentialInput credentialInput) {
-		restHandler.setUserAttribute(userModel.getUsername(), "password", credentialInput.getChallengeResponse());
+		invalidateCredential(userModel.getUsername());
+		try {
+			restHandler.setUserAttribute(userModel.getUsername(), "password", credentialInput.getChallengeResponse());
+		}
+		finally {
+			// validations of the old password that were in flight during the update must not cache it
+			invalidateCredential(userModel.getUsername());
+		}
 		return true;
 	}
 
 	@Override
 	public void disableCredentialType(RealmModel realmModel, UserModel userModel, String credentialType) {
 		if (!supportsCredentialType(credentialType)) return;
-		restHandler.setUserAttribute(userModel.getUsername(), "password", randomPassword());
+		invalidateCredential(userModel.getUsername());
+		try {
+			restHandler.setUserAttribute(userModel.getUsername(), "password", randomPassword());
+		}
+		finally {
+			invalidateCredential(userModel.getUsername());
+		}
+	}
+
+	private void invalidateCredential(String username) {
+		if (credentialCache != null) credentialCache.invalidate(username);
 	}
 
 	@Override
@@ -135,7 +343,9 @@ public class KeycloakRestRepoProvider implements CredentialInputValidator,
 
 	@Override
 	public int getUsersCount(RealmModel realmModel) {
-		return 0;
+		// imported users are counted by the local storage
+		if (importMode) return 0;
+		return userCache.getUsersCount(realmModel.getId(), restHandler::countUsers);
 	}
 
 	@Override
@@ -146,31 +356,67 @@ public class KeycloakRestRepoProvider implements CredentialInputValidator,
 	@Override
 	public Stream<UserModel> searchForUserStream(RealmModel realmModel, String pattern, Integer from, Integer pageSize) {
 		logger.infov("Searching users with pattern: {0} from {1} with pageSize {2}", pattern, from, pageSize);
-		JsonArray usersJson = restHandler.findUsers(pattern);
-		logger.infov("Found {0} users", usersJson.size());
-		List<UserModel> users = new LinkedList<>();
-		for(int i=from; i < min(usersJson.size(), from + pageSize); i++) {
-			logger.infov("Converting user {0} to UserModel", usersJson.getJsonObject(i));
-			RestUserAdapter userModel = new RestUserAdapter(session, realmModel, model, usersJson.getJsonObject(i));
-			userModel.setHandler(restHandler);
-			users.add(userModel);
+		if (importMode) return Stream.empty();
+		Map<String, String> attributes = new HashMap<>();
+		if (pattern != null) attributes.put(UserModel.USERNAME, pattern);
+		Map<String, String> query = restHandler.toQueryParameters(attributes, false);
+		if (query == null) {
+			return Stream.empty();
 		}
-		return users.stream();
+		return searchUsers(query, from, pageSize)
+				.map(userJson -> createAdapter(realmModel, userJson));
 	}
 
 	@Override
 	public Stream<UserModel> searchForUserStream(RealmModel realmModel, Map<String, String> map) {
-		return searchForUserStream(realmModel, map.get("username"));
+		return searchForUserStream(realmModel, map, 0, MAX_VALUE);
 	}
 
 	@Override
 	public Stream<UserModel> searchForUserStream(RealmModel realmModel, Map<String, String> map, Integer from, Integer pageSize) {
-		return searchForUserStream(realmModel, map.get("username"), from, pageSize);
+		logger.infov("Searching users with attributes: {0} from {1} with pageSize {2}", map, from, pageSize);
+		if (importMode) return Stream.empty();
+		Map<String, String> query = restHandler.toQueryParameters(map, false);
+		if (query == null) {
+			return Stream.empty();
+		}
+		return searchUsers(query, from, pageSize)
+				.map(userJson -> createAdapter(realmModel, userJson));
 	}
 
 	@Override
 	public Stream<UserModel> searchForUserByUserAttributeStream(RealmModel realm, String attrName, String attrValue) {
-		return null;
+		logger.infov("Searching users with attribute {0}: {1}", attrName, attrValue);
+		if (importMode) return Stream.empty();
+		Map<String, String> query = restHandler.toQueryParameters(Map.of(attrName, attrValue), true);
+		if (query == null) {
+			return Stream.empty();
+		}
+		long stamp = userCache.stamp();
+		return searchUsers(query, 0, MAX_VALUE)
+				.map(userJson -> createAdapter(realm, userCache.put(userJson.getString("username"), userJson, stamp)));
+	}
+
+	/**
+	 * Search users in the API, paging in the API when supported.
+	 * @param query API query parameters
+	 */
+	private Stream<JsonObject> searchUsers(Map<String, String> query, Integer from, Integer pageSize) {
+		int first = from == null || from < 0 ? 0 : from;
+		int max = pageSize == null || pageSize < 0 ? MAX_VALUE : pageSize;
+		if (restHandler.isPagingSupported() && restHandler.getSearchPageSize() > 0 && max > restHandler.getSearchPageSize()) {
+			logger.infov("Streaming users in pages of {0}", restHandler.getSearchPageSize());
+			PagedUserSpliterator users = new PagedUserSpliterator(restHandler, query, first, max, restHandler.getSearchPageSize());
+			return StreamSupport.stream(users, false).onClose(users::close);
+		} else if (restHandler.isPagingSupported()) {
+			JsonArray page = restHandler.findUsers(query, first, max);
+			logger.infov("Found {0} users in page", page.size());
+			return page.getValuesAs(JsonObject.class).stream();
+		} else {
+			JsonArray all = restHandler.findUsers(query, null, null);
+			logger.infov("Found {0} users. Paging in memory", all.size());
+			return all.getValuesAs(JsonObject.class).stream().skip(first).limit(max);
+		}
 	}
 
 	@Override
@@ -190,9 +436,13 @@ public class KeycloakRestRepoProvider implements CredentialInputValidator,
 
 	@Override
 	public UserModel addUser(RealmModel realmModel, String username) {
-		JsonObject user = restHandler.createUser(username);
-		RestUserAdapter adapter = new RestUserAdapter(session, realmModel, model, user);
-		adapter.setHandler(restHandler);
+		RestUser user = RestUser.of(model.getId(), restHandler.createUser(username));
+		userCache.invalidate(username, user.getEmail());
+		userCache.invalidateCounts();
+		if (importMode) {
+			return importUser(realmModel, user);
+		}
+		RestUserAdapter adapter = createAdapter(realmModel, user);
 		logger.infov("Setting user {0} into cache", username);
 		loadedUsers.put(username, adapter);
 		return adapter;
@@ -201,7 +451,10 @@ public class KeycloakRestRepoProvider implements CredentialInputValidator,
 	@Override
 	public boolean removeUser(RealmModel realmModel, UserModel userModel) {
 		restHandler.deleteUser(userModel.getUsername());
-		loadedUsers.remove(userModel.getUsername());
+		invalidateCredential(userModel.getUsername());
+		loadedUsers.values().removeIf(adapter -> adapter.getUsername().equals(userModel.getUsername()));
+		userCache.invalidate(userModel.getUsername());
+		userCache.invalidateCounts();
 		return true;
 	}
 
@@ -3,35 +3,42 @@ package com.identicum.keycloak;
 import com.google.auto.service.AutoService;
 import org.jboss.logging.Logger;
 import org.keycloak.Config.Scope;
-import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.component.ComponentValidationException;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.storage.UserStorageProviderFactory;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.ImportSynchronization;
+import org.keycloak.storage.user.SynchronizationResult;
 
+import java.util.Date;
 import java.util.List;
-import java.util.Timer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
 
-import static com.identicum.keycloak.HttpStats.TO_MILLISECONDS;
 import static com.identicum.keycloak.RestConfiguration.*;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
 import static org.jboss.logging.Logger.getLogger;
+import static org.keycloak.provider.ProviderConfigProperty.BOOLEAN_TYPE;
 import static org.keycloak.provider.ProviderConfigProperty.LIST_TYPE;
 import static org.keycloak.provider.ProviderConfigProperty.PASSWORD;
 import static org.keycloak.provider.ProviderConfigProperty.STRING_TYPE;
 
 @AutoService(UserStorageProviderFactory.class)
-public class KeycloakRestRepoProviderFactory implements UserStorageProviderFactory<KeycloakRestRepoProvider> {
+public class KeycloakRestRepoProviderFactory implements UserStorageProviderFactory<KeycloakRestRepoProvider>, ImportSynchronization {
 
 	private static final Logger logger = getLogger(KeycloakRestRepoProviderFactory.class);
 	private List<ProviderConfigProperty> configMetadata;
 
-	private MultivaluedHashMap<String, String> lastConfiguration = null;
-
-	private RestHandler restHandler;
-	private Timer httpStats;
+	// resources of each federation component, by component id
+	private final Map<String, RestComponent> components = new ConcurrentHashMap<>();
+	private ScheduledExecutorService scheduler;
 
 	@Override
 	public void init(Scope config) {
@@ -46,7 +53,19 @@ public class KeycloakRestRepoProviderFactory implements UserStorageProviderFacto
 		builder.property().name(PROPERTY_MAX_HTTP_CONNECTIONS)
 				.type(STRING_TYPE).label("Max pool connections")
 				.defaultValue("5")
-				.helpText("Max http connections in pool")
+				.helpText("Max http connections in pool. With the JAVA transport, max requests in flight")
+				.add();
+		builder.property().name(PROPERTY_HTTP_TRANSPORT)
+				.type(LIST_TYPE).label("HTTP transport")
+				.options(TRANSPORT_APACHE, TRANSPORT_JAVA)
+				.defaultValue(TRANSPORT_APACHE)
+				.helpText("HTTP client used to consume the API. APACHE uses a pool of up to 'Max pool connections' blocking connections. JAVA uses the non-blocking JDK client, with up to 'Max pool connections' requests in flight over as many connections as it needs, or multiplexed with HTTP/2.")
+				.add();
+		builder.property().name(PROPERTY_HTTP_VERSION)
+				.type(LIST_TYPE).label("HTTP version")
+				.options(HTTP_1_1, HTTP_2)
+				.defaultValue(HTTP_1_1)
+				.helpText("HTTP protocol used to consume the API. HTTP_2 multiplexes concurrent requests over a few connections (h2 for https, h2c upgrade for http) and requires the JAVA transport.")
 				.add();
 		builder.property().name(PROPERTY_AUTH_TYPE)
 				.type(LIST_TYPE).label("Api Authorization")
@@ -74,6 +93,11 @@ public class KeycloakRestRepoProviderFactory implements UserStorageProviderFacto
 				.defaultValue("")
 				.helpText("Required scope in the access_token request")
 				.add();
+		builder.property().name(PROPERTY_OAUTH_TOKEN_REFRESH_SKEW)
+				.type(STRING_TYPE).label("OAuth2 Token Refresh Skew")
+				.defaultValue("30")
+				.helpText("How long [seconds] before expiration the access_token is renewed in background")
+				.add();
 		builder.property().name(PROPERTY_BASIC_USERNAME)
 				.type(STRING_TYPE).label("Auth Basic Username")
 				.defaultValue("")
@@ -97,29 +121,299 @@ public class KeycloakRestRepoProviderFactory implements UserStorageProviderFacto
 		builder.property().name(API_CONNECTION_REQUEST_TIMEOUT)
 				.type(STRING_TYPE).label("API Connection Request Timeout")
 				.defaultValue("1000")
-				.helpText("Max time [milliseconds] to wait until a connection in the pool is assigned to the requesting thread")
+				.helpText("Max time [milliseconds] to wait until a connection in the pool is assigned to the requesting thread. With the JAVA transport, max time to wait for a request slot")
+				.add();
+		builder.property().name(PROPERTY_MAX_HTTP_CONNECTIONS_PER_ROUTE)
+				.type(STRING_TYPE).label("Max pool connections per route")
+				.defaultValue("0")
+				.helpText("Max http connections in pool to the same host, so the token endpoint can't starve the API. 0 means up to 'Max pool connections'.")
+				.add();
+		builder.property().name(CONNECTION_IDLE_TIMEOUT)
+				.type(STRING_TYPE).label("Connection idle timeout")
+				.defaultValue("30")
+				.helpText("Max time [seconds] a connection is kept idle in the pool before it is closed. Should be lower than the idle timeout of load balancers in front of the API. Keep-Alive timeouts sent by the API are honored when shorter. 0 disables the eviction of idle connections.")
+				.add();
+		builder.property().name(CONNECTION_TIME_TO_LIVE)
+				.type(STRING_TYPE).label("Connection time to live")
+				.defaultValue("300")
+				.helpText("Max lifetime [seconds] of a pooled connection, so new API instances and DNS changes are picked up. 0 means unlimited.")
+				.add();
+		builder.property().name(CONNECTION_VALIDATE_AFTER_INACTIVITY)
+				.type(STRING_TYPE).label("Connection validate after inactivity")
+				.defaultValue("2000")
+				.helpText("Inactivity [milliseconds] after which a pooled connection is checked for staleness before being reused. 0 disables the check.")
 				.add();
 		builder.property().name(HTTP_STATS_INTERVAL)
 				.type(STRING_TYPE).label("HttpStats interval")
 				.defaultValue("0")
 				.helpText("How often [seconds] will the HTTP connection pool stats be displayed. 0 means disabled.")
 				.add();
+		builder.property().name(METRICS_ENABLED)
+				.type(BOOLEAN_TYPE).label("Metrics enabled")
+				.defaultValue("true")
+				.helpText("Publish latency, error, in-flight and cache metrics of the API calls in the Keycloak metrics endpoint")
+				.add();
+		builder.property().name(SEARCH_PAGING_SUPPORTED)
+				.type(BOOLEAN_TYPE).label("Search paging supported")
+				.defaultValue("false")
+				.helpText("Whether the API pages user searches. When disabled the whole result is downloaded and paged in memory.")
+				.add();
+		builder.property().name(SEARCH_FIRST_PARAM)
+				.type(STRING_TYPE).label("Search first parameter")
+				.defaultValue("first")
+				.helpText("Query parameter with the index of the first user of the page")
+				.add();
+		builder.property().name(SEARCH_MAX_PARAM)
+				.type(STRING_TYPE).label("Search max parameter")
+				.defaultValue("max")
+				.helpText("Query parameter with the max number of users of the page")
+				.add();
+		builder.property().name(SEARCH_PAGE_SIZE)
+				.type(STRING_TYPE).label("Search page size")
+				.defaultValue("100")
+				.helpText("Number of users requested on each call when a search is larger than one page (requires search paging)")
+				.add();
+		builder.property().name(SEARCH_ATTRIBUTE_MAPPING)
+				.type(STRING_TYPE).label("Search attribute mapping")
+				.defaultValue("email=email")
+				.helpText("Comma separated list of attribute=parameter pairs, mapping the user attributes that can be searched to API query parameters. Used for email lookups and attribute searches.")
+				.add();
+		builder.property().name(COUNT_MODE)
+				.type(LIST_TYPE).label("Users count mode")
+				.options(COUNT_NONE, COUNT_ENDPOINT, COUNT_HEADER)
+				.defaultValue(COUNT_NONE)
+				.helpText("How to get the number of users. ENDPOINT calls the count endpoint, HEADER reads the total header of a one-user search, limited with the search max parameter even if paging is not supported. NONE always reports 0.")
+				.add();
+		builder.property().name(COUNT_ENDPOINT_PATH)
+				.type(STRING_TYPE).label("Users count endpoint")
+				.defaultValue("/users/count")
+				.helpText("Path, relative to the base URL, returning the number of users as a plain number or a {\"count\": n} object")
+				.add();
+		builder.property().name(COUNT_HEADER_NAME)
+				.type(STRING_TYPE).label("Users count header")
+				.defaultValue("X-Total-Count")
+				.helpText("Header with the total number of users of a paginated search")
+				.add();
+		builder.property().name(USER_COUNT_CACHE_TTL)
+				.type(STRING_TYPE).label("Users count cache TTL")
+				.defaultValue("30")
+				.helpText("How long [seconds] the number of users is cached. 0 means disabled.")
+				.add();
+		builder.property().name(BULK_LOOKUP_MODE)
+				.type(LIST_TYPE).label("Bulk lookup mode")
+				.options(BULK_LOOKUP_NONE, BULK_LOOKUP_POST, BULK_LOOKUP_QUERY)
+				.defaultValue(BULK_LOOKUP_NONE)
+				.helpText("How to find many users with one request. POST sends {\"usernames\": [...]} to the bulk lookup endpoint, QUERY repeats the bulk lookup parameter in GET /users. NONE finds users one by one.")
+				.add();
+		builder.property().name(BULK_LOOKUP_ENDPOINT)
+				.type(STRING_TYPE).label("Bulk lookup endpoint")
+				.defaultValue("/users/_lookup")
+				.helpText("Path, relative to the base URL, receiving POST bulk lookups")
+				.add();
+		builder.property().name(BULK_LOOKUP_PARAM)
+				.type(STRING_TYPE).label("Bulk lookup parameter")
+				.defaultValue("username")
+				.helpText("Query parameter repeated for each user in QUERY bulk lookups")
+				.add();
+		builder.property().name(BULK_LOOKUP_MAX_BATCH_SIZE)
+				.type(STRING_TYPE).label("Bulk lookup max batch size")
+				.defaultValue("50")
+				.helpText("Max number of users requested in a single bulk lookup")
+				.add();
+		builder.property().name(BULK_LOOKUP_WINDOW)
+				.type(STRING_TYPE).label("Bulk lookup window")
+				.defaultValue("0")
+				.helpText("How long [milliseconds] concurrent user lookups are collected to be sent as one bulk lookup. 0 means disabled.")
+				.add();
+		builder.property().name(USER_CACHE_MAX_SIZE)
+				.type(STRING_TYPE).label("User cache max size")
+				.defaultValue("10000")
+				.helpText("Max number of users kept in the node-wide user cache. 0 means disabled.")
+				.add();
+		builder.property().name(USER_CACHE_TTL)
+				.type(STRING_TYPE).label("User cache TTL")
+				.defaultValue("60")
+				.helpText("How long [seconds] a user found in the API is kept in the cache. 0 means disabled.")
+				.add();
+		builder.property().name(USER_CACHE_NEGATIVE_TTL)
+				.type(STRING_TYPE).label("User cache negative TTL")
+				.defaultValue("0")
+				.helpText("How long [seconds] a user not found in the API is remembered as missing. 0 means disabled.")
+				.add();
+		builder.property().name(USER_CACHE_STALE_GRACE)
+				.type(STRING_TYPE).label("User cache stale grace")
+				.defaultValue("0")
+				.helpText("How long [seconds] after its TTL a cached user is still served, while it is refreshed in background or when the API is failing. Password validation always requires the API. 0 means disabled.")
+				.add();
+		builder.property().name(CREDENTIAL_CACHE_MAX_SIZE)
+				.type(STRING_TYPE).label("Credential cache max size")
+				.defaultValue("10000")
+				.helpText("Max number of validated passwords cached in each Keycloak node")
+				.add();
+		builder.property().name(CREDENTIAL_CACHE_TTL)
+				.type(STRING_TYPE).label("Credential cache TTL")
+				.defaultValue("0")
+				.helpText("How long [seconds] a password validated by the API is accepted again without calling it. Only a salted PBKDF2 hash of the password is kept, and wrong passwords are always sent to the API. 0 means disabled.")
+				.add();
+		builder.property().name(CIRCUIT_BREAKER_FAILURE_RATE)
+				.type(STRING_TYPE).label("Circuit breaker failure rate")
+				.defaultValue("50")
+				.helpText("Percentage of failed API calls (errors and 5xx responses) that opens the circuit, making calls fail fast. 0 means disabled.")
+				.add();
+		builder.property().name(CIRCUIT_BREAKER_SLOW_CALL_RATE)
+				.type(STRING_TYPE).label("Circuit breaker slow call rate")
+				.defaultValue("80")
+				.helpText("Percentage of slow API calls that opens the circuit. 0 means disabled.")
+				.add();
+		builder.property().name(CIRCUIT_BREAKER_SLOW_CALL_DURATION)
+				.type(STRING_TYPE).label("Circuit breaker slow call duration")
+				.defaultValue("5000")
+				.helpText("Duration [milliseconds] from which an API call is considered slow")
+				.add();
+		builder.property().name(CIRCUIT_BREAKER_WINDOW_SIZE)
+				.type(STRING_TYPE).label("Circuit breaker window size")
+				.defaultValue("50")
+				.helpText("Number of last API calls used to compute the failure and slow call rates")
+				.add();
+		builder.property().name(CIRCUIT_BREAKER_MINIMUM_CALLS)
+				.type(STRING_TYPE).label("Circuit breaker minimum calls")
+				.defaultValue("20")
+				.helpText("Minimum number of calls in the window before the circuit can open")
+				.add();
+		builder.property().name(CIRCUIT_BREAKER_OPEN_DURATION)
+				.type(STRING_TYPE).label("Circuit breaker open duration")
+				.defaultValue("30")
+				.helpText("How long [seconds] the circuit stays open before probing the API again")
+				.add();
+		builder.property().name(CIRCUIT_BREAKER_HALF_OPEN_CALLS)
+				.type(STRING_TYPE).label("Circuit breaker probe calls")
+				.defaultValue("5")
+				.helpText("Number of successful probe calls needed to close the circuit again")
+				.add();
+		builder.property().name(BULKHEAD_LIMITS)
+				.type(STRING_TYPE).label("Bulkhead limits")
+				.defaultValue("")
+				.helpText("Max concurrent API calls per operation, as a comma separated list of operation=limit pairs (e.g. findUsers=2,countUsers=1). Operations: authenticate, findUserByUsername, findUsers, findUsersByUsernames, countUsers, createUser, setUserAttribute, deleteUser, token. findUsers and countUsers are limited to half of the pool by default. 0 means unlimited.")
+				.add();
+		builder.property().name(BULKHEAD_MAX_WAIT)
+				.type(STRING_TYPE).label("Bulkhead max wait")
+				.defaultValue("100")
+				.helpText("How long [milliseconds] a call waits for a free slot of its operation bulkhead before failing. Asynchronous calls, such as prefetches and background refreshes, fail right away")
+				.add();
+		builder.property().name(RETRY_MAX_ATTEMPTS)
+				.type(STRING_TYPE).label("Retry max attempts")
+				.defaultValue("2")
+				.helpText("Max attempts of idempotent calls (user lookups, searches, counts and token requests) failing without response or with a 502, 503 or 504 status. 1 means no retries.")
+				.add();
+		builder.property().name(RETRY_BACKOFF)
+				.type(STRING_TYPE).label("Retry backoff")
+				.defaultValue("50")
+				.helpText("Base delay [milliseconds] before retrying a call, doubled on each attempt and randomized")
+				.add();
+		builder.property().name(RETRY_BUDGET)
+				.type(STRING_TYPE).label("Retry budget")
+				.defaultValue("10")
+				.helpText("Max percentage of extra requests sent as retries and hedged requests, to avoid retry storms against a failing API")
+				.add();
+		builder.property().name(HEDGED_LOOKUPS)
+				.type(BOOLEAN_TYPE).label("Hedged lookups")
+				.defaultValue("false")
+				.helpText("Send a second user lookup when the first one is slower than the 95th percentile of recent lookups, using the first answer received")
+				.add();
+		builder.property().name(HEDGE_MIN_DELAY)
+				.type(STRING_TYPE).label("Hedge min delay")
+				.defaultValue("20")
+				.helpText("Min delay [milliseconds] before sending a hedged user lookup")
+				.add();
+		builder.property().name(IMPORT_MODE)
+				.type(BOOLEAN_TYPE).label("Import mode")
+				.defaultValue("false")
+				.helpText("Import users into the Keycloak local storage when they are first found, and with the periodic full and changed users sync, so lookups and searches are served by Keycloak. Only credential validation and updates are sent to the API.")
+				.add();
+		builder.property().name(IMPORT_VALIDATION)
+				.type(BOOLEAN_TYPE).label("Import validation")
+				.defaultValue("false")
+				.helpText("In import mode, check imported users against the API, through the node cache, each time they are loaded, and remove them from the local storage once the API no longer finds them. This sends lookups to the API again once cached users expire. Without it, users deleted from the API stay in the local storage.")
+				.add();
+		builder.property().name(SYNC_BATCH_SIZE)
+				.type(STRING_TYPE).label("Sync batch size")
+				.defaultValue("100")
+				.helpText("Users requested to the API on each page, and imported in each transaction, during a sync")
+				.add();
+		builder.property().name(SYNC_PARALLELISM)
+				.type(STRING_TYPE).label("Sync parallelism")
+				.defaultValue("2")
+				.helpText("Batches of users imported concurrently during a sync")
+				.add();
+		builder.property().name(SYNC_CHANGED_SINCE_PARAM)
+				.type(STRING_TYPE).label("Sync changed since parameter")
+				.defaultValue("")
+				.helpText("Query parameter sent to the users endpoint with the ISO-8601 time of the last sync, to find only the users changed since then. Empty to import every user on changed users sync too.")
+				.add();
+		builder.property().name(RESPONSE_COMPRESSION)
+				.type(BOOLEAN_TYPE).label("Response compression")
+				.defaultValue("true")
+				.helpText("Ask the API for gzip or deflate compressed responses, decompressed while they are parsed")
+				.add();
+		builder.property().name(REQUEST_COMPRESSION_THRESHOLD)
+				.type(STRING_TYPE).label("Request compression threshold")
+				.defaultValue("0")
+				.helpText("Size [bytes] from which request bodies are sent gzip compressed. Only enable it if the API accepts compressed requests. 0 means disabled.")
+				.add();
 		configMetadata = builder.build();
-		this.httpStats = new Timer();
+		this.scheduler = newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "rest-repo-scheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
 	}
 
 	@Override
 	public KeycloakRestRepoProvider create(KeycloakSession session, ComponentModel model) {
-		if(restHandler == null || !model.getConfig().equals( lastConfiguration )) {
-			logger.infov("Creating a new instance of restHandler");
-			RestConfiguration restConfiguration = new RestConfiguration(model.getConfig());
-			restHandler = new RestHandler(restConfiguration);
-			setHttpStats(logger, restHandler, restConfiguration.getHttpStatsInterval());
-			lastConfiguration = model.getConfig();
-		} else {
-			logger.infov("RestHandler already instantiated");
+		return new KeycloakRestRepoProvider(session, model, retainComponent(model));
+	}
+
+	@Override
+	public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+		return synchronize(model, synchronizer -> synchronizer.sync(sessionFactory, realmId, model));
+	}
+
+	@Override
+	public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+		return synchronize(model, synchronizer -> synchronizer.syncSince(lastSync, sessionFactory, realmId, model));
+	}
+
+	/**
+	 * Run a sync with the resources of the model component, if it is in import mode.
+	 */
+	private SynchronizationResult synchronize(UserStorageProviderModel model, Function<UserSynchronizer, SynchronizationResult> sync) {
+		if(!Boolean.parseBoolean(model.get(IMPORT_MODE))) {
+			logger.infov("Import mode is disabled for component {0}. Ignoring sync", model.getName());
+			return SynchronizationResult.ignored();
 		}
-		return new KeycloakRestRepoProvider(session, model, restHandler);
+		RestComponent component = retainComponent(model);
+		try {
+			return sync.apply(component.getSynchronizer());
+		}
+		finally {
+			component.release();
+		}
+	}
+
+	@Override
+	public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+		RestComponent component = components.remove(model.getId());
+		if(component != null) {
+			logger.infov("Removing rest handler of component {0}", model.getName());
+			component.retire();
+		}
+	}
+
+	@Override
+	public void close() {
+		components.values().forEach(RestComponent::close);
+		components.clear();
+		scheduler.shutdownNow();
 	}
 
 	@Override
@@ -137,11 +431,41 @@ public class KeycloakRestRepoProviderFactory implements UserStorageProviderFacto
 		validate(config.getConfig());
 	}
 
-	private void setHttpStats(Logger logger, RestHandler restHandler, Integer httpStatsInterval){
-		httpStats.cancel();
-		if(httpStatsInterval > 0){
-			this.httpStats = new Timer();
-			this.httpStats.schedule(new HttpStats(logger, restHandler), 0, httpStatsInterval * TO_MILLISECONDS);
+	/**
+	 * Get the resources of the model component, retained for a new provider. They are created on the first
+	 * call for each component and reused afterwards. When the component configuration changed, the previous
+	 * ones are retired and closed after the sessions using them are done.
+	 * The resources are built outside the map, so a failing build leaves no entry behind, and installed only
+	 * if the entry did not change meanwhile. Otherwise the new instance is closed and the lookup is retried.
+	 */
+	private RestComponent retainComponent(ComponentModel model) {
+		while(true) {
+			RestComponent current = components.get(model.getId());
+			if(current != null && current.isConfiguredWith(model.getConfig()) && current.tryRetain()) {
+				return current;
+			}
+			RestComponent created;
+			boolean installed;
+			synchronized(components) {
+				current = components.get(model.getId());
+				if(current != null && current.isConfiguredWith(model.getConfig()) && current.tryRetain()) {
+					return current;
+				}
+				logger.infov("Creating a new instance of restHandler for component {0}", model.getName());
+				if(current != null) {
+					// retired before building the new instance, which registers meters with the same ids
+					current.retire();
+				}
+				created = new RestComponent(model, scheduler);
+				installed = current == null
+						? components.putIfAbsent(model.getId(), created) == null
+						: components.replace(model.getId(), current, created);
+			}
+			if(installed && created.tryRetain()) {
+				return created;
+			}
+			// the component was removed while building
+			created.close();
 		}
 	}
 }
@@ -0,0 +1,111 @@
+package com.identicum.keycloak;
+
+import org.jboss.logging.Logger;
+
+import jakarta.json.JsonArray;
+import jakarta.json.JsonObject;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Spliterators.AbstractSpliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+import static java.util.Collections.emptyIterator;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Iterates the users of a search pulling successive pages from the API on demand.
+ * While a page is being consumed the next one is requested in background, so at most two pages
+ * are held in memory whatever the number of users returned by the search. Closing the spliterator,
+ * e.g. from the stream {@code onClose} once a short-circuited stream is done, aborts the prefetch.
+ */
+public class PagedUserSpliterator extends AbstractSpliterator<JsonObject> {
+
+	private static final Logger logger = getLogger(PagedUserSpliterator.class);
+
+	private final RestHandler restHandler;
+	private final Map<String, String> query;
+	private final int pageSize;
+
+	private int nextFirst;
+	private long remaining;
+	private boolean lastPage = false;
+	private Iterator<JsonObject> current = emptyIterator();
+	private CompletableFuture<JsonArray> prefetched;
+
+	/**
+	 * @param query API query parameters of the search
+	 * @param first Index of the first user to return
+	 * @param max Max number of users to return
+	 * @param pageSize Number of users requested to the API on each call
+	 */
+	public PagedUserSpliterator(RestHandler restHandler, Map<String, String> query, int first, long max, int pageSize) {
+		super(max, ORDERED | NONNULL);
+		this.restHandler = restHandler;
+		this.query = query;
+		this.pageSize = pageSize;
+		this.nextFirst = first;
+		this.remaining = max;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super JsonObject> action) {
+		while(!current.hasNext()) {
+			if(lastPage || remaining <= 0) {
+				return false;
+			}
+			fetchNextPage();
+		}
+		remaining--;
+		action.accept(current.next());
+		return true;
+	}
+
+	private void fetchNextPage() {
+		int requested = requestedSize();
+		JsonArray page;
+		if(prefetched != null) {
+			page = join(prefetched);
+			prefetched = null;
+		} else {
+			logger.debugv("Requesting page of {0} users from {1}", requested, nextFirst);
+			page = restHandler.findUsers(query, nextFirst, requested);
+		}
+		logger.debugv("Received page of {0} users from {1}", page.size(), nextFirst);
+		nextFirst += page.size();
+		lastPage = page.isEmpty() || page.size() < requested;
+		current = page.getValuesAs(JsonObject.class).iterator();
+
+		if(!lastPage && remaining > page.size()) {
+			int nextRequested = (int) Math.min(pageSize, remaining - page.size());
+			logger.debugv("Prefetching page of {0} users from {1}", nextRequested, nextFirst);
+			prefetched = restHandler.findUsersAsync(query, nextFirst, nextRequested);
+		}
+	}
+
+	/**
+	 * Abort the request of the page prefetched and not consumed, if any.
+	 */
+	public void close() {
+		if(prefetched != null) {
+			logger.debugv("Cancelling prefetch of users from {0}", nextFirst);
+			prefetched.cancel(true);
+			prefetched = null;
+		}
+	}
+
+	private int requestedSize() {
+		return (int) Math.min(pageSize, remaining);
+	}
+
+	private JsonArray join(CompletableFuture<JsonArray> future) {
+		try {
+			return future.join();
+		}
+		catch(CompletionException ce) {
+			if(ce.getCause() instanceof RuntimeException) throw (RuntimeException) ce.getCause();
+			throw ce;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.identicum.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransactionManager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.jboss.logging.Logger.getLogger;
+import static org.keycloak.models.UserModel.EMAIL;
+
+/**
+ * Attribute changes of a user, sent to the API with a single PATCH when the transaction commits.
+ * Without an active transaction each change is sent right away.
+ */
+public class PendingUserUpdate {
+
+	private static final Logger logger = getLogger(PendingUserUpdate.class);
+
+	private final KeycloakSession session;
+	private final Supplier<String> username;
+	private final Runnable onFlush;
+	private final Runnable onRollback;
+	private RestHandler handler;
+	private UserCache userCache;
+
+	// attributes modified in this transaction, sent to the API in a single PATCH on commit
+	private final Map<String, String> dirtyAttributes = new LinkedHashMap<>();
+	private boolean flushEnlisted = false;
+
+	/**
+	 * @param username Supplier of the username of the user, read when the changes are sent
+	 */
+	public PendingUserUpdate(KeycloakSession session, Supplier<String> username) {
+		this(session, username, () -> {}, () -> {});
+	}
+
+	/**
+	 * @param onFlush Called once the pending changes were sent to the API
+	 * @param onRollback Called when the transaction is rolled back and the pending changes are discarded
+	 */
+	public PendingUserUpdate(KeycloakSession session, Supplier<String> username, Runnable onFlush, Runnable onRollback) {
+		this.session = session;
+		this.username = username;
+		this.onFlush = onFlush;
+		this.onRollback = onRollback;
+	}
+
+	public void setHandler(RestHandler handler) {
+		this.handler = handler;
+	}
+
+	public void setUserCache(UserCache userCache) {
+		this.userCache = userCache;
+	}
+
+	/**
+	 * Register the attribute to be sent to the API when the transaction commits.
+	 */
+	public void setUserAttribute(String attribute, String value) {
+		dirtyAttributes.put(attribute, value);
+		KeycloakTransactionManager transactionManager = session.getTransactionManager();
+		if (!transactionManager.isActive()) {
+			flush();
+		} else if (!flushEnlisted) {
+			logger.debugv("Enlisting update of user {0} in current transaction", username.get());
+			transactionManager.enlist(new FlushTransaction());
+			flushEnlisted = true;
+		}
+	}
+
+	/**
+	 * Send pending attribute changes to the API with a single PATCH request.
+	 */
+	public void flush() {
+		if (dirtyAttributes.isEmpty()) return;
+		Map<String, String> attributes = new LinkedHashMap<>(dirtyAttributes);
+		dirtyAttributes.clear();
+		logger.infov("Flushing {0} modified attributes of user {1}", attributes.size(), username.get());
+		handler.patchUser(username.get(), attributes);
+		// the new email may have been cached as not found
+		if (userCache != null) userCache.invalidate(username.get(), attributes.get(EMAIL));
+		onFlush.run();
+	}
+
+	private class FlushTransaction extends AbstractKeycloakTransaction {
+		@Override
+		protected void commitImpl() {
+			flushEnlisted = false;
+			flush();
+		}
+
+		@Override
+		protected void rollbackImpl() {
+			flushEnlisted = false;
+			dirtyAttributes.clear();
+			onRollback.run();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.identicum.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.keycloak.storage.UserStorageProviderModel.LAST_SYNC;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Resources shared by the providers of a federation component: the handler with its HTTP pool and
+ * token manager, the user and credential caches and the lookup batcher. Each provider retains them while its session is
+ * open. When the configuration changes the component is retired, and closed once the last session using
+ * it is done, or after the drain timeout.
+ */
+public class RestComponent {
+
+	private static final Logger logger = getLogger(RestComponent.class);
+
+	private static final long DRAIN_TIMEOUT = 60;
+
+	private final MultivaluedHashMap<String, String> configuration;
+	private final RestHandler restHandler;
+	private final UserCache userCache;
+	private final CredentialCache credentialCache;
+	private final UserLookupBatcher lookupBatcher;
+	private final UserSynchronizer synchronizer;
+	private final ScheduledExecutorService scheduler;
+	private final ScheduledFuture<?> httpStats;
+
+	// guarded by this
+	private int references = 0;
+	private boolean retired = false;
+	private boolean closed = false;
+
+	/**
+	 * @param scheduler Executor shared by the components of the factory, used to log the HTTP stats and to drain retired components
+	 */
+	public RestComponent(ComponentModel model, ScheduledExecutorService scheduler) {
+		RestConfiguration restConfiguration = new RestConfiguration(model.getConfig());
+		this.configuration = model.getConfig();
+		this.scheduler = scheduler;
+		RestHandler restHandler = new RestHandler(restConfiguration, model.getId());
+		UserLookupBatcher lookupBatcher = null;
+		try {
+			this.restHandler = restHandler;
+			this.userCache = new UserCache(restConfiguration, model.getId());
+			this.restHandler.getMetrics().bindUserCache(userCache);
+			this.credentialCache = new CredentialCache(restConfiguration);
+			this.restHandler.getMetrics().bindCredentialCache(credentialCache);
+			lookupBatcher = restHandler.isBulkLookupSupported() && restConfiguration.getBulkLookupWindow() > 0
+					? new UserLookupBatcher(restHandler, restConfiguration)
+					: null;
+			this.lookupBatcher = lookupBatcher;
+			this.synchronizer = new UserSynchronizer(restHandler, restConfiguration);
+			Integer httpStatsInterval = restConfiguration.getHttpStatsInterval();
+			this.httpStats = httpStatsInterval > 0
+					? scheduler.scheduleAtFixedRate(new HttpStats(logger, restHandler, model.getName()), 0, httpStatsInterval, SECONDS)
+					: null;
+		}
+		catch(RuntimeException e) {
+			// the half-built component is never handed out, so its resources are closed here
+			if(lookupBatcher != null) lookupBatcher.close();
+			restHandler.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Whether the component was created with the given configuration. The time of the last sync,
+	 * updated by Keycloak after each sync, is ignored.
+	 */
+	public boolean isConfiguredWith(MultivaluedHashMap<String, String> configuration) {
+		return withoutLastSync(this.configuration).equals(withoutLastSync(configuration));
+	}
+
+	public RestHandler getRestHandler() {
+		return restHandler;
+	}
+
+	public UserCache getUserCache() {
+		return userCache;
+	}
+
+	public CredentialCache getCredentialCache() {
+		return credentialCache;
+	}
+
+	public UserLookupBatcher getLookupBatcher() {
+		return lookupBatcher;
+	}
+
+	public UserSynchronizer getSynchronizer() {
+		return synchronizer;
+	}
+
+	/**
+	 * Register a provider using the component, until it calls {@link #release()}. A retired component is not retained.
+	 * @return whether the component was retained
+	 */
+	public synchronized boolean tryRetain() {
+		if(retired) return false;
+		references++;
+		return true;
+	}
+
+	public synchronized void release() {
+		references--;
+		if(retired && references <= 0) close();
+	}
+
+	/**
+	 * Stop handing the component to new providers. Its meters are removed right away, so the replacing component
+	 * can register its own, and its resources are closed when the providers still using it are released.
+	 */
+	public synchronized void retire() {
+		if(retired) return;
+		retired = true;
+		if(httpStats != null) httpStats.cancel(false);
+		restHandler.getMetrics().close();
+		if(references <= 0) {
+			close();
+			return;
+		}
+		logger.infov("Waiting for {0} sessions to release the retired rest handler", references);
+		scheduler.schedule(this::close, DRAIN_TIMEOUT, SECONDS);
+	}
+
+	/**
+	 * Close the component resources, even if there are providers still using it.
+	 */
+	public synchronized void close() {
+		if(closed) return;
+		closed = true;
+		retired = true;
+		if(references > 0) logger.warnv("Closing rest handler still used by {0} sessions", references);
+		if(httpStats != null) httpStats.cancel(false);
+		if(lookupBatcher != null) lookupBatcher.close();
+		restHandler.close();
+	}
+
+	private static Map<String, List<String>> withoutLastSync(MultivaluedHashMap<String, String> configuration) {
+		Map<String, List<String>> copy = new HashMap<>(configuration);
+		copy.remove(LAST_SYNC);
+		return copy;
+	}
+}
@@ -8,7 +8,10 @@ import org.keycloak.component.ComponentValidationException;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import static java.lang.Boolean.parseBoolean;
 import static java.lang.Integer.parseInt;
 
 @Getter
@@ -18,36 +21,148 @@ public class RestConfiguration {
 	public static final String AUTH_BASIC = "BASIC";
 	public static final String AUTH_OAUTH = "OAUTH";
 
+	public static final String TRANSPORT_APACHE = "APACHE";
+	public static final String TRANSPORT_JAVA = "JAVA";
+
+	public static final String COUNT_NONE = "NONE";
+	public static final String COUNT_ENDPOINT = "ENDPOINT";
+	public static final String COUNT_HEADER = "HEADER";
+
+	public static final String BULK_LOOKUP_NONE = "NONE";
+	public static final String BULK_LOOKUP_POST = "POST";
+	public static final String BULK_LOOKUP_QUERY = "QUERY";
+
+	public static final String HTTP_1_1 = "HTTP_1_1";
+	public static final String HTTP_2 = "HTTP_2";
+
 	public static final String PROPERTY_BASE_URL = "baseURL";
 	public static final String PROPERTY_MAX_HTTP_CONNECTIONS = "maxHttpConnections";
+	public static final String PROPERTY_HTTP_TRANSPORT = "httpTransport";
+	public static final String PROPERTY_HTTP_VERSION = "httpVersion";
 	public static final String PROPERTY_AUTH_TYPE = "authType";
 	public static final String PROPERTY_OAUTH_CLIENT_ID = "oauthClientId";
 	public static final String PROPERTY_OAUTH_CLIENT_SECRET = "oauthClientSecret";
 	public static final String PROPERTY_OAUTH_SCOPE = "oauthScope";
 	public static final String PROPERTY_OAUTH_TOKEN_ENDPOINT = "oauthTokenEndpoint";
+	public static final String PROPERTY_OAUTH_TOKEN_REFRESH_SKEW = "oauthTokenRefreshSkew";
 	public static final String PROPERTY_BASIC_USERNAME = "basicUsername";
 	public static final String PROPERTY_BASIC_PASSWORD = "basicPassword";
 
 	public static final String API_SOCKET_TIMEOUT = "apiSocketTimeout";
 	public static final String API_CONNECT_TIMEOUT = "apiConnectTimeout";
 	public static final String API_CONNECTION_REQUEST_TIMEOUT = "apiConnectionRequestTimeout";
+	public static final String PROPERTY_MAX_HTTP_CONNECTIONS_PER_ROUTE = "maxHttpConnectionsPerRoute";
+	public static final String CONNECTION_IDLE_TIMEOUT = "connectionIdleTimeout";
+	public static final String CONNECTION_TIME_TO_LIVE = "connectionTimeToLive";
+	public static final String CONNECTION_VALIDATE_AFTER_INACTIVITY = "connectionValidateAfterInactivity";
 	public static final String HTTP_STATS_INTERVAL = "httpStatsInterval";
+	public static final String METRICS_ENABLED = "metricsEnabled";
+	public static final String SEARCH_PAGING_SUPPORTED = "searchPagingSupported";
+	public static final String SEARCH_FIRST_PARAM = "searchFirstParam";
+	public static final String SEARCH_MAX_PARAM = "searchMaxParam";
+	public static final String SEARCH_PAGE_SIZE = "searchPageSize";
+	public static final String SEARCH_ATTRIBUTE_MAPPING = "searchAttributeMapping";
+	public static final String COUNT_MODE = "countMode";
+	public static final String COUNT_ENDPOINT_PATH = "countEndpoint";
+	public static final String COUNT_HEADER_NAME = "countHeader";
+	public static final String USER_COUNT_CACHE_TTL = "userCountCacheTtl";
+	public static final String BULK_LOOKUP_MODE = "bulkLookupMode";
+	public static final String BULK_LOOKUP_ENDPOINT = "bulkLookupEndpoint";
+	public static final String BULK_LOOKUP_PARAM = "bulkLookupParam";
+	public static final String BULK_LOOKUP_MAX_BATCH_SIZE = "bulkLookupMaxBatchSize";
+	public static final String BULK_LOOKUP_WINDOW = "bulkLookupWindow";
+	public static final String USER_CACHE_MAX_SIZE = "userCacheMaxSize";
+	public static final String USER_CACHE_TTL = "userCacheTtl";
+	public static final String USER_CACHE_NEGATIVE_TTL = "userCacheNegativeTtl";
+	public static final String USER_CACHE_STALE_GRACE = "userCacheStaleGrace";
+	public static final String CREDENTIAL_CACHE_MAX_SIZE = "credentialCacheMaxSize";
+	public static final String CREDENTIAL_CACHE_TTL = "credentialCacheTtl";
+	public static final String CIRCUIT_BREAKER_FAILURE_RATE = "circuitBreakerFailureRate";
+	public static final String CIRCUIT_BREAKER_SLOW_CALL_RATE = "circuitBreakerSlowCallRate";
+	public static final String CIRCUIT_BREAKER_SLOW_CALL_DURATION = "circuitBreakerSlowCallDuration";
+	public static final String CIRCUIT_BREAKER_WINDOW_SIZE = "circuitBreakerWindowSize";
+	public static final String CIRCUIT_BREAKER_MINIMUM_CALLS = "circuitBreakerMinimumCalls";
+	public static final String CIRCUIT_BREAKER_OPEN_DURATION = "circuitBreakerOpenDuration";
+	public static final String CIRCUIT_BREAKER_HALF_OPEN_CALLS = "circuitBreakerHalfOpenCalls";
+	public static final String BULKHEAD_LIMITS = "bulkheadLimits";
+	public static final String BULKHEAD_MAX_WAIT = "bulkheadMaxWait";
+	public static final String RETRY_MAX_ATTEMPTS = "retryMaxAttempts";
+	public static final String RETRY_BACKOFF = "retryBackoff";
+	public static final String RETRY_BUDGET = "retryBudget";
+	public static final String HEDGED_LOOKUPS = "hedgedLookups";
+	public static final String HEDGE_MIN_DELAY = "hedgeMinDelay";
+	public static final String IMPORT_MODE = "importMode";
+	public static final String IMPORT_VALIDATION = "importValidation";
+	public static final String SYNC_BATCH_SIZE = "syncBatchSize";
+	public static final String SYNC_PARALLELISM = "syncParallelism";
+	public static final String SYNC_CHANGED_SINCE_PARAM = "syncChangedSinceParam";
+	public static final String RESPONSE_COMPRESSION = "responseCompression";
+	public static final String REQUEST_COMPRESSION_THRESHOLD = "requestCompressionThreshold";
 
 	private static final Logger logger = Logger.getLogger(RestConfiguration.class);
 
 	private String baseUrl;
 	private Integer maxConnections;
+	private String httpTransport;
+	private String httpVersion;
 	private String authType;
 	private String oauthClientId;
 	private String oauthClientSecret;
 	private String oauthScope;
 	private String oauthTokenEndpoint;
+	private Integer oauthTokenRefreshSkew;
 	private String basicUsername;
 	private String basicPassword;
 	private Integer apiSocketTimeout;
 	private Integer apiConnectTimeout;
 	private Integer apiConnectionRequestTimeout;
+	private Integer maxConnectionsPerRoute;
+	private Integer connectionIdleTimeout;
+	private Integer connectionTimeToLive;
+	private Integer connectionValidateAfterInactivity;
 	private Integer httpStatsInterval;
+	private Boolean metricsEnabled;
+	private Boolean searchPagingSupported;
+	private String searchFirstParam;
+	private String searchMaxParam;
+	private Integer searchPageSize;
+	private Map<String, String> searchAttributeMapping;
+	private String countMode;
+	private String countEndpoint;
+	private String countHeader;
+	private Integer userCountCacheTtl;
+	private String bulkLookupMode;
+	private String bulkLookupEndpoint;
+	private String bulkLookupParam;
+	private Integer bulkLookupMaxBatchSize;
+	private Integer bulkLookupWindow;
+	private Integer userCacheMaxSize;
+	private Integer userCacheTtl;
+	private Integer userCacheNegativeTtl;
+	private Integer userCacheStaleGrace;
+	private Integer credentialCacheMaxSize;
+	private Integer credentialCacheTtl;
+	private Integer circuitBreakerFailureRate;
+	private Integer circuitBreakerSlowCallRate;
+	private Integer circuitBreakerSlowCallDuration;
+	private Integer circuitBreakerWindowSize;
+	private Integer circuitBreakerMinimumCalls;
+	private Integer circuitBreakerOpenDuration;
+	private Integer circuitBreakerHalfOpenCalls;
+	private Map<String, String> bulkheadLimits;
+	private Integer bulkheadMaxWait;
+	private Integer retryMaxAttempts;
+	private Integer retryBackoff;
+	private Integer retryBudget;
+	private Boolean hedgedLookups;
+	private Integer hedgeMinDelay;
+	private Boolean importMode;
+	private Boolean importValidation;
+	private Integer syncBatchSize;
+	private Integer syncParallelism;
+	private String syncChangedSinceParam;
+	private Boolean responseCompression;
+	private Integer requestCompressionThreshold;
 
 	public RestConfiguration(MultivaluedHashMap<String, String> keycloakConfig) {
 		this.baseUrl = keycloakConfig.getFirst(PROPERTY_BASE_URL);
@@ -60,6 +175,16 @@ public class RestConfiguration {
 		this.maxConnections = parseInt(keycloakConfig.getFirst(PROPERTY_MAX_HTTP_CONNECTIONS));
 		logger.infov("Loaded maxHttpConnections from module properties: {0}", maxConnections);
 
+		this.httpTransport = getString(keycloakConfig, PROPERTY_HTTP_TRANSPORT, TRANSPORT_APACHE);
+		logger.infov("Loaded httpTransport from module properties: {0}", httpTransport);
+
+		this.httpVersion = getString(keycloakConfig, PROPERTY_HTTP_VERSION, HTTP_1_1);
+		logger.infov("Loaded httpVersion from module properties: {0}", httpVersion);
+		if(HTTP_2.equals(httpVersion) && !TRANSPORT_JAVA.equals(httpTransport)) {
+			logger.warnv("HTTP/2 is not supported by the {0} transport. Using {1} transport", httpTransport, TRANSPORT_JAVA);
+			this.httpTransport = TRANSPORT_JAVA;
+		}
+
 		this.authType = keycloakConfig.getFirst(PROPERTY_AUTH_TYPE);
 		logger.infov("Loaded authType from module properties: {0}", authType);
 
@@ -72,6 +197,9 @@ public class RestConfiguration {
 		this.oauthTokenEndpoint = keycloakConfig.getFirst(PROPERTY_OAUTH_TOKEN_ENDPOINT);
 		logger.infov("Loaded oauthClientId from module properties: {0}", oauthTokenEndpoint);
 
+		this.oauthTokenRefreshSkew = getInteger(keycloakConfig, PROPERTY_OAUTH_TOKEN_REFRESH_SKEW, 30);
+		logger.infov("Loaded oauthTokenRefreshSkew from module properties: {0}", oauthTokenRefreshSkew);
+
 		this.oauthScope = keycloakConfig.getFirst(PROPERTY_OAUTH_SCOPE);
 		logger.infov("Loaded oauthScope from module properties: {0}", oauthScope);
 
@@ -90,8 +218,185 @@ public class RestConfiguration {
 		this.apiConnectionRequestTimeout = parseInt(keycloakConfig.getFirst(API_CONNECTION_REQUEST_TIMEOUT));
 		logger.infov("Loaded apiConnectionRequestTimeout from module properties: {0}", apiConnectionRequestTimeout);
 
+		this.maxConnectionsPerRoute = getInteger(keycloakConfig, PROPERTY_MAX_HTTP_CONNECTIONS_PER_ROUTE, 0);
+		if(maxConnectionsPerRoute <= 0 || maxConnectionsPerRoute > maxConnections) {
+			this.maxConnectionsPerRoute = maxConnections;
+		}
+		logger.infov("Loaded maxHttpConnectionsPerRoute from module properties: {0}", maxConnectionsPerRoute);
+
+		this.connectionIdleTimeout = getInteger(keycloakConfig, CONNECTION_IDLE_TIMEOUT, 30);
+		logger.infov("Loaded connectionIdleTimeout from module properties: {0}", connectionIdleTimeout);
+
+		this.connectionTimeToLive = getInteger(keycloakConfig, CONNECTION_TIME_TO_LIVE, 300);
+		logger.infov("Loaded connectionTimeToLive from module properties: {0}", connectionTimeToLive);
+
+		this.connectionValidateAfterInactivity = getInteger(keycloakConfig, CONNECTION_VALIDATE_AFTER_INACTIVITY, 2000);
+		logger.infov("Loaded connectionValidateAfterInactivity from module properties: {0}", connectionValidateAfterInactivity);
+
 		this.httpStatsInterval = parseInt(keycloakConfig.getFirst(HTTP_STATS_INTERVAL));
 		logger.infov("Loaded httpStatsInterval from module properties: {0}", httpStatsInterval);
+
+		this.metricsEnabled = parseBoolean(getString(keycloakConfig, METRICS_ENABLED, "true"));
+		logger.infov("Loaded metricsEnabled from module properties: {0}", metricsEnabled);
+
+		this.searchPagingSupported = parseBoolean(keycloakConfig.getFirst(SEARCH_PAGING_SUPPORTED));
+		logger.infov("Loaded searchPagingSupported from module properties: {0}", searchPagingSupported);
+
+		this.searchFirstParam = getString(keycloakConfig, SEARCH_FIRST_PARAM, "first");
+		logger.infov("Loaded searchFirstParam from module properties: {0}", searchFirstParam);
+
+		this.searchMaxParam = getString(keycloakConfig, SEARCH_MAX_PARAM, "max");
+		logger.infov("Loaded searchMaxParam from module properties: {0}", searchMaxParam);
+
+		this.searchPageSize = getInteger(keycloakConfig, SEARCH_PAGE_SIZE, 100);
+		logger.infov("Loaded searchPageSize from module properties: {0}", searchPageSize);
+
+		this.searchAttributeMapping = parseMapping(getString(keycloakConfig, SEARCH_ATTRIBUTE_MAPPING, "email=email"));
+		logger.infov("Loaded searchAttributeMapping from module properties: {0}", searchAttributeMapping);
+
+		this.countMode = getString(keycloakConfig, COUNT_MODE, COUNT_NONE);
+		logger.infov("Loaded countMode from module properties: {0}", countMode);
+
+		this.countEndpoint = getString(keycloakConfig, COUNT_ENDPOINT_PATH, "/users/count");
+		logger.infov("Loaded countEndpoint from module properties: {0}", countEndpoint);
+
+		this.countHeader = getString(keycloakConfig, COUNT_HEADER_NAME, "X-Total-Count");
+		logger.infov("Loaded countHeader from module properties: {0}", countHeader);
+
+		this.userCountCacheTtl = getInteger(keycloakConfig, USER_COUNT_CACHE_TTL, 30);
+		logger.infov("Loaded userCountCacheTtl from module properties: {0}", userCountCacheTtl);
+
+		this.bulkLookupMode = getString(keycloakConfig, BULK_LOOKUP_MODE, BULK_LOOKUP_NONE);
+		logger.infov("Loaded bulkLookupMode from module properties: {0}", bulkLookupMode);
+
+		this.bulkLookupEndpoint = getString(keycloakConfig, BULK_LOOKUP_ENDPOINT, "/users/_lookup");
+		logger.infov("Loaded bulkLookupEndpoint from module properties: {0}", bulkLookupEndpoint);
+
+		this.bulkLookupParam = getString(keycloakConfig, BULK_LOOKUP_PARAM, "username");
+		logger.infov("Loaded bulkLookupParam from module properties: {0}", bulkLookupParam);
+
+		this.bulkLookupMaxBatchSize = getInteger(keycloakConfig, BULK_LOOKUP_MAX_BATCH_SIZE, 50);
+		logger.infov("Loaded bulkLookupMaxBatchSize from module properties: {0}", bulkLookupMaxBatchSize);
+
+		this.bulkLookupWindow = getInteger(keycloakConfig, BULK_LOOKUP_WINDOW, 0);
+		logger.infov("Loaded bulkLookupWindow from module properties: {0}", bulkLookupWindow);
+
+		this.userCacheMaxSize = getInteger(keycloakConfig, USER_CACHE_MAX_SIZE, 10000);
+		logger.infov("Loaded userCacheMaxSize from module properties: {0}", userCacheMaxSize);
+
+		this.userCacheTtl = getInteger(keycloakConfig, USER_CACHE_TTL, 60);
+		logger.infov("Loaded userCacheTtl from module properties: {0}", userCacheTtl);
+
+		this.userCacheNegativeTtl = getInteger(keycloakConfig, USER_CACHE_NEGATIVE_TTL, 0);
+		logger.infov("Loaded userCacheNegativeTtl from module properties: {0}", userCacheNegativeTtl);
+
+		this.userCacheStaleGrace = getInteger(keycloakConfig, USER_CACHE_STALE_GRACE, 0);
+		logger.infov("Loaded userCacheStaleGrace from module properties: {0}", userCacheStaleGrace);
+
+		this.credentialCacheMaxSize = getInteger(keycloakConfig, CREDENTIAL_CACHE_MAX_SIZE, 10000);
+		logger.infov("Loaded credentialCacheMaxSize from module properties: {0}", credentialCacheMaxSize);
+
+		this.credentialCacheTtl = getInteger(keycloakConfig, CREDENTIAL_CACHE_TTL, 0);
+		logger.infov("Loaded credentialCacheTtl from module properties: {0}", credentialCacheTtl);
+
+		this.circuitBreakerFailureRate = getInteger(keycloakConfig, CIRCUIT_BREAKER_FAILURE_RATE, 50);
+		logger.infov("Loaded circuitBreakerFailureRate from module properties: {0}", circuitBreakerFailureRate);
+
+		this.circuitBreakerSlowCallRate = getInteger(keycloakConfig, CIRCUIT_BREAKER_SLOW_CALL_RATE, 80);
+		logger.infov("Loaded circuitBreakerSlowCallRate from module properties: {0}", circuitBreakerSlowCallRate);
+
+		this.circuitBreakerSlowCallDuration = getInteger(keycloakConfig, CIRCUIT_BREAKER_SLOW_CALL_DURATION, 5000);
+		logger.infov("Loaded circuitBreakerSlowCallDuration from module properties: {0}", circuitBreakerSlowCallDuration);
+
+		this.circuitBreakerWindowSize = getInteger(keycloakConfig, CIRCUIT_BREAKER_WINDOW_SIZE, 50);
+		logger.infov("Loaded circuitBreakerWindowSize from module properties: {0}", circuitBreakerWindowSize);
+
+		this.circuitBreakerMinimumCalls = getInteger(keycloakConfig, CIRCUIT_BREAKER_MINIMUM_CALLS, 20);
+		logger.infov("Loaded circuitBreakerMinimumCalls from module properties: {0}", circuitBreakerMinimumCalls);
+
+		this.circuitBreakerOpenDuration = getInteger(keycloakConfig, CIRCUIT_BREAKER_OPEN_DURATION, 30);
+		logger.infov("Loaded circuitBreakerOpenDuration from module properties: {0}", circuitBreakerOpenDuration);
+
+		this.circuitBreakerHalfOpenCalls = getInteger(keycloakConfig, CIRCUIT_BREAKER_HALF_OPEN_CALLS, 5);
+		logger.infov("Loaded circuitBreakerHalfOpenCalls from module properties: {0}", circuitBreakerHalfOpenCalls);
+
+		this.bulkheadLimits = parseMapping(getString(keycloakConfig, BULKHEAD_LIMITS, ""));
+		logger.infov("Loaded bulkheadLimits from module properties: {0}", bulkheadLimits);
+
+		this.bulkheadMaxWait = getInteger(keycloakConfig, BULKHEAD_MAX_WAIT, 100);
+		logger.infov("Loaded bulkheadMaxWait from module properties: {0}", bulkheadMaxWait);
+
+		this.retryMaxAttempts = getInteger(keycloakConfig, RETRY_MAX_ATTEMPTS, 2);
+		logger.infov("Loaded retryMaxAttempts from module properties: {0}", retryMaxAttempts);
+
+		this.retryBackoff = getInteger(keycloakConfig, RETRY_BACKOFF, 50);
+		logger.infov("Loaded retryBackoff from module properties: {0}", retryBackoff);
+
+		this.retryBudget = getInteger(keycloakConfig, RETRY_BUDGET, 10);
+		logger.infov("Loaded retryBudget from module properties: {0}", retryBudget);
+
+		this.hedgedLookups = parseBoolean(getString(keycloakConfig, HEDGED_LOOKUPS, "false"));
+		logger.infov("Loaded hedgedLookups from module properties: {0}", hedgedLookups);
+
+		this.hedgeMinDelay = getInteger(keycloakConfig, HEDGE_MIN_DELAY, 20);
+		logger.infov("Loaded hedgeMinDelay from module properties: {0}", hedgeMinDelay);
+
+		this.importMode = parseBoolean(getString(keycloakConfig, IMPORT_MODE, "false"));
+		logger.infov("Loaded importMode from module properties: {0}", importMode);
+
+		this.importValidation = parseBoolean(getString(keycloakConfig, IMPORT_VALIDATION, "false"));
+		logger.infov("Loaded importValidation from module properties: {0}", importValidation);
+
+		this.syncBatchSize = getInteger(keycloakConfig, SYNC_BATCH_SIZE, 100);
+		logger.infov("Loaded syncBatchSize from module properties: {0}", syncBatchSize);
+
+		this.syncParallelism = getInteger(keycloakConfig, SYNC_PARALLELISM, 2);
+		logger.infov("Loaded syncParallelism from module properties: {0}", syncParallelism);
+
+		this.syncChangedSinceParam = getString(keycloakConfig, SYNC_CHANGED_SINCE_PARAM, "");
+		logger.infov("Loaded syncChangedSinceParam from module properties: {0}", syncChangedSinceParam);
+
+		this.responseCompression = parseBoolean(getString(keycloakConfig, RESPONSE_COMPRESSION, "true"));
+		logger.infov("Loaded responseCompression from module properties: {0}", responseCompression);
+
+		this.requestCompressionThreshold = getInteger(keycloakConfig, REQUEST_COMPRESSION_THRESHOLD, 0);
+		logger.infov("Loaded requestCompressionThreshold from module properties: {0}", requestCompressionThreshold);
+	}
+
+	/**
+	 * Read an optional property, falling back to the default value for components
+	 * saved before the property existed.
+	 */
+	private static String getString(MultivaluedHashMap<String, String> keycloakConfig, String propertyName, String defaultValue) {
+		String value = keycloakConfig.getFirst(propertyName);
+		return value == null || value.isEmpty() ? defaultValue : value;
+	}
+
+	/**
+	 * Parse a comma separated list of name=value pairs.
+	 */
+	private static Map<String, String> parseMapping(String mapping) {
+		Map<String, String> parsed = new LinkedHashMap<>();
+		for(String pair : mapping.split(",")) {
+			String[] nameValue = pair.split("=", 2);
+			if(nameValue.length == 2 && !nameValue[0].isBlank() && !nameValue[1].isBlank()) {
+				parsed.put(nameValue[0].trim(), nameValue[1].trim());
+			}
+		}
+		return parsed;
+	}
+
+	/**
+	 * Read an optional numeric property, falling back to the default value for components
+	 * saved before the property existed.
+	 */
+	private static Integer getInteger(MultivaluedHashMap<String, String> keycloakConfig, String propertyName, Integer defaultValue) {
+		String value = keycloakConfig.getFirst(propertyName);
+		return value == null || value.isEmpty() ? defaultValue : parseInt(value);
+	}
+
+	public boolean isHttp2() {
+		return HTTP_2.equals(httpVersion);
 	}
 
 	public static void validate(MultivaluedHashMap<String, String> config) {
@@ -111,6 +416,41 @@ public class RestConfiguration {
 			throw new ComponentValidationException("Max pool connections should be a number");
 		}
 
+		checkPropertyIsNumber(config, PROPERTY_MAX_HTTP_CONNECTIONS_PER_ROUTE);
+		checkPropertyIsNumber(config, CONNECTION_IDLE_TIMEOUT);
+		checkPropertyIsNumber(config, CONNECTION_TIME_TO_LIVE);
+		checkPropertyIsNumber(config, CONNECTION_VALIDATE_AFTER_INACTIVITY);
+		checkPropertyIsNumber(config, PROPERTY_OAUTH_TOKEN_REFRESH_SKEW);
+		checkPropertyIsNumber(config, SEARCH_PAGE_SIZE);
+		checkPropertyIsNumber(config, USER_COUNT_CACHE_TTL);
+		checkPropertyIsNumber(config, BULK_LOOKUP_MAX_BATCH_SIZE);
+		checkPropertyIsNumber(config, BULK_LOOKUP_WINDOW);
+		checkPropertyIsNumber(config, USER_CACHE_MAX_SIZE);
+		checkPropertyIsNumber(config, USER_CACHE_TTL);
+		checkPropertyIsNumber(config, USER_CACHE_NEGATIVE_TTL);
+		checkPropertyIsNumber(config, USER_CACHE_STALE_GRACE);
+		checkPropertyIsNumber(config, CREDENTIAL_CACHE_MAX_SIZE);
+		checkPropertyIsNumber(config, CREDENTIAL_CACHE_TTL);
+		checkPropertyIsNumber(config, CIRCUIT_BREAKER_FAILURE_RATE);
+		checkPropertyIsNumber(config, CIRCUIT_BREAKER_SLOW_CALL_RATE);
+		checkPropertyIsNumber(config, CIRCUIT_BREAKER_SLOW_CALL_DURATION);
+		checkPropertyIsNumber(config, CIRCUIT_BREAKER_WINDOW_SIZE);
+		checkPropertyIsNumber(config, CIRCUIT_BREAKER_MINIMUM_CALLS);
+		checkPropertyIsNumber(config, CIRCUIT_BREAKER_OPEN_DURATION);
+		checkPropertyIsNumber(config, CIRCUIT_BREAKER_HALF_OPEN_CALLS);
+		checkPropertyIsNumber(config, BULKHEAD_MAX_WAIT);
+		checkPropertyIsNumber(config, RETRY_MAX_ATTEMPTS);
+		checkPropertyIsNumber(config, RETRY_BACKOFF);
+		checkPropertyIsNumber(config, RETRY_BUDGET);
+		checkPropertyIsNumber(config, HEDGE_MIN_DELAY);
+		checkPropertyIsNumber(config, SYNC_BATCH_SIZE);
+		checkPropertyIsNumber(config, SYNC_PARALLELISM);
+		checkPropertyIsNumber(config, REQUEST_COMPRESSION_THRESHOLD);
+		String bulkheadLimits = config.getFirst(BULKHEAD_LIMITS);
+		if (bulkheadLimits != null && !parseMapping(bulkheadLimits).values().stream().allMatch(limit -> limit.matches("\\d+"))) {
+			throw new ComponentValidationException("The " + BULKHEAD_LIMITS + " field should be a list of operation=limit pairs");
+		}
+
 		if (config.getFirst(PROPERTY_AUTH_TYPE).equals( RestConfiguration.AUTH_OAUTH)) {
 			logger.warn("Auth Type set to OAUTH2. Checking required fields");
 			checkPropertyNotEmpty(config, PROPERTY_OAUTH_CLIENT_ID);
@@ -140,19 +480,75 @@ public class RestConfiguration {
 		}
 	}
 
+	private static void checkPropertyIsNumber(MultivaluedHashMap<String, String> config, String propertyName) {
+		String propertyValue = config.getFirst(propertyName);
+		if( propertyValue != null && !propertyValue.matches("\\d*")) {
+			throw new ComponentValidationException("The " + propertyName + " field should be a number");
+		}
+	}
+
 	@Override
 	public String toString() {
 		StringBuffer buffer = new StringBuffer();
 		buffer.append("baseUrl: " + baseUrl + "; ");
 		buffer.append("maxConnections: " + maxConnections + "; ");
+		buffer.append("httpTransport: " + httpTransport + "; ");
+		buffer.append("httpVersion: " + httpVersion + "; ");
 		buffer.append("authType: " + authType + "; ");
 		buffer.append("oauthClientId: " + oauthClientId + "; ");
 		buffer.append("oauthTokenEndpoint: " + oauthTokenEndpoint + "; ");
+		buffer.append("oauthTokenRefreshSkew: " + oauthTokenRefreshSkew + "; ");
 		buffer.append("oauthScope: " + oauthScope + "; ");
 		buffer.append("basicUsername: " + basicUsername + "; ");
 		buffer.append("apiSocketTimeout: " + apiSocketTimeout + "; ");
 		buffer.append("apiConnectTimeout: " + apiConnectTimeout + "; ");
-		buffer.append("apiConnectionRequestTimeout: " + apiConnectionRequestTimeout);
+		buffer.append("apiConnectionRequestTimeout: " + apiConnectionRequestTimeout + "; ");
+		buffer.append("maxConnectionsPerRoute: " + maxConnectionsPerRoute + "; ");
+		buffer.append("connectionIdleTimeout: " + connectionIdleTimeout + "; ");
+		buffer.append("connectionTimeToLive: " + connectionTimeToLive + "; ");
+		buffer.append("connectionValidateAfterInactivity: " + connectionValidateAfterInactivity + "; ");
+		buffer.append("metricsEnabled: " + metricsEnabled + "; ");
+		buffer.append("searchPagingSupported: " + searchPagingSupported + "; ");
+		buffer.append("searchFirstParam: " + searchFirstParam + "; ");
+		buffer.append("searchMaxParam: " + searchMaxParam + "; ");
+		buffer.append("searchPageSize: " + searchPageSize + "; ");
+		buffer.append("searchAttributeMapping: " + searchAttributeMapping + "; ");
+		buffer.append("countMode: " + countMode + "; ");
+		buffer.append("countEndpoint: " + countEndpoint + "; ");
+		buffer.append("countHeader: " + countHeader + "; ");
+		buffer.append("userCountCacheTtl: " + userCountCacheTtl + "; ");
+		buffer.append("bulkLookupMode: " + bulkLookupMode + "; ");
+		buffer.append("bulkLookupEndpoint: " + bulkLookupEndpoint + "; ");
+		buffer.append("bulkLookupParam: " + bulkLookupParam + "; ");
+		buffer.append("bulkLookupMaxBatchSize: " + bulkLookupMaxBatchSize + "; ");
+		buffer.append("bulkLookupWindow: " + bulkLookupWindow + "; ");
+		buffer.append("userCacheMaxSize: " + userCacheMaxSize + "; ");
+		buffer.append("userCacheTtl: " + userCacheTtl + "; ");
+		buffer.append("userCacheNegativeTtl: " + userCacheNegativeTtl + "; ");
+		buffer.append("userCacheStaleGrace: " + userCacheStaleGrace + "; ");
+		buffer.append("credentialCacheMaxSize: " + credentialCacheMaxSize + "; ");
+		buffer.append("credentialCacheTtl: " + credentialCacheTtl + "; ");
+		buffer.append("circuitBreakerFailureRate: " + circuitBreakerFailureRate + "; ");
+		buffer.append("circuitBreakerSlowCallRate: " + circuitBreakerSlowCallRate + "; ");
+		buffer.append("circuitBreakerSlowCallDuration: " + circuitBreakerSlowCallDuration + "; ");
+		buffer.append("circuitBreakerWindowSize: " + circuitBreakerWindowSize + "; ");
+		buffer.append("circuitBreakerMinimumCalls: " + circuitBreakerMinimumCalls + "; ");
+		buffer.append("circuitBreakerOpenDuration: " + circuitBreakerOpenDuration + "; ");
+		buffer.append("circuitBreakerHalfOpenCalls: " + circuitBreakerHalfOpenCalls + "; ");
+		buffer.append("bulkheadLimits: " + bulkheadLimits + "; ");
+		buffer.append("bulkheadMaxWait: " + bulkheadMaxWait + "; ");
+		buffer.append("retryMaxAttempts: " + retryMaxAttempts + "; ");
+		buffer.append("retryBackoff: " + retryBackoff + "; ");
+		buffer.append("retryBudget: " + retryBudget + "; ");
+		buffer.append("hedgedLookups: " + hedgedLookups + "; ");
+		buffer.append("hedgeMinDelay: " + hedgeMinDelay + "; ");
+		buffer.append("importMode: " + importMode + "; ");
+		buffer.append("importValidation: " + importValidation + "; ");
+		buffer.append("syncBatchSize: " + syncBatchSize + "; ");
+		buffer.append("syncParallelism: " + syncParallelism + "; ");
+		buffer.append("syncChangedSinceParam: " + syncChangedSinceParam + "; ");
+		buffer.append("responseCompression: " + responseCompression + "; ");
+		buffer.append("requestCompressionThreshold: " + requestCompressionThreshold);
 
 		return buffer.toString();
 	}
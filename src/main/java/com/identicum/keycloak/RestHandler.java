@@ -1,157 +1,511 @@
 package com.identicum.keycloak;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.config.SocketConfig;
+import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.conn.ConnectionPoolTimeoutException;
-import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.pool.PoolStats;
-import org.apache.http.util.EntityUtils;
 import org.jboss.logging.Logger;
 import org.keycloak.authentication.ForkFlowException;
 import org.keycloak.models.utils.FormMessage;
 
 import jakarta.json.JsonArray;
+import jakarta.json.JsonNumber;
 import jakarta.json.JsonObject;
 import jakarta.json.JsonObjectBuilder;
+import jakarta.json.JsonString;
+import jakarta.json.JsonValue;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.identicum.keycloak.RestConfiguration.AUTH_OAUTH;
+import static com.identicum.keycloak.RestConfiguration.BULK_LOOKUP_NONE;
+import static com.identicum.keycloak.RestConfiguration.BULK_LOOKUP_POST;
+import static com.identicum.keycloak.RestConfiguration.COUNT_ENDPOINT;
+import static com.identicum.keycloak.RestConfiguration.COUNT_HEADER;
+import static com.identicum.keycloak.RestConfiguration.TRANSPORT_JAVA;
+import static com.identicum.keycloak.RestOperation.*;
+import static com.identicum.keycloak.RestUser.ACTIVE;
 import static com.identicum.keycloak.RestUserAdapter.randomPassword;
 import static java.lang.Boolean.TRUE;
-import static java.lang.String.format;
-import static java.lang.System.currentTimeMillis;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.function.Function.identity;
 import static java.util.stream.Stream.of;
+import static jakarta.json.Json.createArrayBuilder;
 import static jakarta.json.Json.createObjectBuilder;
-import static org.apache.http.Consts.UTF_8;
 import static org.apache.http.HttpHeaders.ACCEPT;
 import static org.apache.http.HttpHeaders.AUTHORIZATION;
 import static org.apache.http.HttpHeaders.CONNECTION;
 import static org.apache.http.HttpHeaders.CONTENT_TYPE;
-import static org.apache.http.entity.ContentType.APPLICATION_FORM_URLENCODED;
+import static org.apache.http.HttpHeaders.ETAG;
+import static org.apache.http.HttpHeaders.IF_MODIFIED_SINCE;
+import static org.apache.http.HttpHeaders.IF_NONE_MATCH;
+import static org.apache.http.HttpHeaders.LAST_MODIFIED;
+import static org.apache.http.HttpStatus.SC_NOT_FOUND;
+import static org.apache.http.HttpStatus.SC_UNAUTHORIZED;
 import static org.apache.http.entity.ContentType.APPLICATION_JSON;
-import static org.apache.http.protocol.HTTP.CONN_DIRECTIVE;
 import static org.apache.http.protocol.HTTP.CONN_KEEP_ALIVE;
 import static org.jboss.logging.Logger.getLogger;
+import static org.keycloak.models.UserModel.EXACT;
+import static org.keycloak.models.UserModel.INCLUDE_SERVICE_ACCOUNT;
+import static org.keycloak.models.UserModel.SEARCH;
+import static org.keycloak.models.UserModel.USERNAME;
 
 public class RestHandler {
 
 	private static final Logger logger = getLogger(RestHandler.class);
-	protected CloseableHttpClient httpClient;
 
 	private final RestConfiguration configuration;
-	private final PoolingHttpClientConnectionManager poolingHttpClientConnectionManager;
+	private final HttpTransport transport;
+	private final RestMetrics metrics;
+	private final CircuitBreaker circuitBreaker;
+	private final Bulkheads bulkheads;
+	private final RetryPolicy retryPolicy;
+	private final ContentCompression compression;
 
 	private String basicToken;
-	private String accessToken;
-	private String refreshToken;
-	private Date tokenExpiresAt;
+	private final AccessTokenManager tokenManager;
 	private final String BACKEND_AUTHENTICATION_ERROR = "BACKEND_AUTHENTICATION_ERROR";
 
 	public RestHandler(RestConfiguration configuration) {
-		Integer maxConnections = configuration.getMaxConnections();
-		Integer socketTimeout = configuration.getApiSocketTimeout();
-		Integer connectTimeout = configuration.getApiConnectTimeout();
-		Integer connectionRequestTimeout = configuration.getApiConnectionRequestTimeout();
-		logger.infov("Initializing HTTP pool with maxConnections: {0}, connectionRequestTimeout: {1}, connectTimeout: {2}, socketTimeout: {3}", maxConnections, connectionRequestTimeout, connectTimeout, socketTimeout);
-		this.poolingHttpClientConnectionManager = new PoolingHttpClientConnectionManager();
-		this.poolingHttpClientConnectionManager.setMaxTotal(maxConnections);
-		this.poolingHttpClientConnectionManager.setDefaultMaxPerRoute(maxConnections);
-		this.poolingHttpClientConnectionManager.setDefaultSocketConfig(SocketConfig.custom()
-				.setSoTimeout(socketTimeout)
-				.build());
-		RequestConfig requestConfig = RequestConfig.custom()
-				.setConnectTimeout(connectTimeout)
-				.setConnectionRequestTimeout(connectionRequestTimeout)
-				.build();
-		this.httpClient = HttpClients.custom()
-				.setDefaultRequestConfig(requestConfig)
-				.setConnectionManager(poolingHttpClientConnectionManager)
-				.build();
-		this.configuration = configuration;
+		this(configuration, null);
+	}
+
+	/**
+	 * @param componentId Id of the federation component using the handler, to tag its metrics
+	 */
+	public RestHandler(RestConfiguration configuration, String componentId) {
+		logger.infov("Using {0} HTTP transport", configuration.getHttpTransport());
+		RestMetrics metrics = new RestMetrics(configuration, componentId);
+		HttpTransport transport = null;
+		try {
+			this.metrics = metrics;
+			this.compression = new ContentCompression(configuration);
+			this.metrics.bindCompression(compression);
+			transport = TRANSPORT_JAVA.equals(configuration.getHttpTransport())
+					? new JavaHttpTransport(configuration, compression)
+					: new ApacheHttpTransport(configuration, metrics, compression);
+			this.transport = transport;
+			this.configuration = configuration;
+			this.circuitBreaker = new CircuitBreaker(configuration);
+			this.bulkheads = new Bulkheads(configuration);
+			this.retryPolicy = new RetryPolicy(configuration);
+			this.metrics.bindCircuitBreaker(circuitBreaker);
+			this.tokenManager = AUTH_OAUTH.equals(configuration.getAuthType())
+					? new AccessTokenManager(configuration, request -> stopOnError(executeCall(TOKEN, request)))
+					: null;
+		}
+		catch(RuntimeException e) {
+			if(transport != null) transport.close();
+			metrics.close();
+			throw e;
+		}
 	}
 
 	public boolean authenticate(String username, String password) {
+		return executeCall(AUTHENTICATE, authenticateRequest(username, password)).isSuccess();
+	}
+
+	public CompletableFuture<Boolean> authenticateAsync(String username, String password) {
+		return executeCallAsync(AUTHENTICATE, authenticateRequest(username, password)).thenApply(SimpleHttpResponse::isSuccess);
+	}
+
+	public JsonObject findUserByUsername(String username) {
+		return findUserByUsername(username, null, null).getUser();
+	}
+
+	public CompletableFuture<JsonObject> findUserByUsernameAsync(String username) {
+		return findUserByUsernameAsync(username, null, null).thenApply(VersionedUser::getUser);
+	}
+
+	/**
+	 * Find a user, revalidating the version already known with a conditional request when its validators are given.
+	 * @param etag ETag of the known version, sent as If-None-Match. Null if unknown
+	 * @param lastModified Last-Modified of the known version, sent as If-Modified-Since. Null if unknown
+	 * @return the user found with its validators, or a not modified result if the known version is still valid
+	 */
+	public VersionedUser findUserByUsername(String username, String etag, String lastModified) {
+		if(retryPolicy.isHedgingEnabled()) {
+			try {
+				return findUserByUsernameHedged(username, etag, lastModified).join();
+			}
+			catch(CompletionException ce) {
+				throw backendError(ce.getCause() != null ? ce.getCause() : ce);
+			}
+		}
+		return versionedUserOrNull(executeSecuredCall(FIND_USER, findUserByUsernameRequest(username, etag, lastModified)));
+	}
+
+	public CompletableFuture<VersionedUser> findUserByUsernameAsync(String username, String etag, String lastModified) {
+		if(retryPolicy.isHedgingEnabled()) {
+			return findUserByUsernameHedged(username, etag, lastModified);
+		}
+		return executeSecuredCallAsync(FIND_USER, findUserByUsernameRequest(username, etag, lastModified)).thenApply(this::versionedUserOrNull);
+	}
+
+	/**
+	 * Find a user sending a second, hedged, request if the first one did not answer after the hedge delay
+	 * (the 95th percentile of recent lookups). The first answer received is used, and the other request aborted.
+	 * If the first request fails before the hedged one is sent, its error is returned right away.
+	 */
+	private CompletableFuture<VersionedUser> findUserByUsernameHedged(String username, String etag, String lastModified) {
+		CompletableFuture<VersionedUser> result = new CompletableFuture<>();
+		// set once it is decided whether the hedged request is sent, by the first request failing or the hedge delay
+		AtomicBoolean hedgeDecided = new AtomicBoolean();
+		HttpRequestBase firstRequest = findUserByUsernameRequest(username, etag, lastModified);
+		CompletableFuture<VersionedUser> first = executeSecuredCallAsync(FIND_USER, firstRequest).thenApply(this::versionedUserOrNull);
+		first.whenComplete((user, error) -> {
+			if(error == null) {
+				result.complete(user);
+			} else if(hedgeDecided.compareAndSet(false, true)) {
+				result.completeExceptionally(error);
+			}
+		});
+		long delay = retryPolicy.getHedgeDelay();
+		CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(delay, MILLISECONDS)).thenRun(() -> {
+			if(result.isDone() || !hedgeDecided.compareAndSet(false, true)) return;
+			if(!retryPolicy.tryHedge()) {
+				first.whenComplete((user, error) -> {
+					if(error != null) result.completeExceptionally(error);
+				});
+				return;
+			}
+			logger.debugv("User {0} not found after {1}ms. Sending hedged request", username, delay);
+			HttpRequestBase hedgedRequest = findUserByUsernameRequest(username, etag, lastModified);
+			CompletableFuture<VersionedUser> hedged = executeSecuredCallAsync(FIND_USER, hedgedRequest).thenApply(this::versionedUserOrNull);
+			hedged.whenComplete((user, error) -> {
+				if(error == null) result.complete(user);
+			});
+			CompletableFuture.allOf(first, hedged).whenComplete((done, error) -> {
+				if(first.isCompletedExceptionally() && hedged.isCompletedExceptionally()) result.completeExceptionally(error);
+			});
+			result.whenComplete((user, error) -> {
+				if(!first.isDone()) firstRequest.abort();
+				if(!hedged.isDone()) hedgedRequest.abort();
+			});
+		});
+		return result;
+	}
+
+	public void setUserAttribute(String username, String attribute, String value) {
+		patchUser(username, singletonMap(attribute, value));
+	}
+
+	public CompletableFuture<Void> setUserAttributeAsync(String username, String attribute, String value) {
+		return patchUserAsync(username, singletonMap(attribute, value));
+	}
+
+	/**
+	 * Update several user attributes with a single PATCH request.
+	 * @param attributes Attributes to update. A null value is sent as JSON null
+	 */
+	public void patchUser(String username, Map<String, String> attributes) {
+		stopOnError(executeSecuredCall(UPDATE_USER, patchUserRequest(username, attributes)));
+	}
+
+	public CompletableFuture<Void> patchUserAsync(String username, Map<String, String> attributes) {
+		return executeSecuredCallAsync(UPDATE_USER, patchUserRequest(username, attributes)).thenAccept(this::stopOnError);
+	}
+
+	public Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<>(transport.getStats());
+		stats.put("circuitBreaker", circuitBreaker.getStats());
+		stats.put("bulkheads", bulkheads.getStats());
+		stats.put("retries", retryPolicy.getStats());
+		stats.put("compression", compression.getStats());
+		return stats;
+	}
+
+	public RestMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Close the connection pool, the token refresh scheduler and the meters of this handler.
+	 */
+	public void close() {
+		logger.info("Closing rest handler");
+		if(tokenManager != null) tokenManager.close();
+		transport.close();
+		metrics.close();
+	}
+
+	public JsonArray findUsers(String username) {
+		return findUsers(username, null, null);
+	}
+
+	/**
+	 * Search users sending the page to the API, if it supports paging.
+	 * @param first Index of the first user, null to start from the first one
+	 * @param max Max number of users to return, null or {@link Integer#MAX_VALUE} for all of them
+	 */
+	public JsonArray findUsers(String username, Integer first, Integer max) {
+		return findUsers(usernameQuery(username), first, max);
+	}
+
+	/**
+	 * Search users matching all the given API query parameters.
+	 * @see #toQueryParameters(Map, boolean)
+	 */
+	public JsonArray findUsers(Map<String, String> query, Integer first, Integer max) {
+		return stopOnError(executeSecuredCall(FIND_USERS, findUsersRequest(query, first, max))).getResponseAsJsonArray();
+	}
+
+	public CompletableFuture<JsonArray> findUsersAsync(String username) {
+		return findUsersAsync(usernameQuery(username), null, null);
+	}
+
+	/**
+	 * Asynchronous version of {@link #findUsers(Map, Integer, Integer)}. Cancelling the returned future aborts the request.
+	 */
+	public CompletableFuture<JsonArray> findUsersAsync(Map<String, String> query, Integer first, Integer max) {
+		HttpRequestBase request = findUsersRequest(query, first, max);
+		CompletableFuture<JsonArray> users = executeSecuredCallAsync(FIND_USERS, request).thenApply(response -> stopOnError(response).getResponseAsJsonArray());
+		users.whenComplete((result, error) -> {
+			if(error instanceof CancellationException) request.abort();
+		});
+		return users;
+	}
+
+	/**
+	 * Find many users by username or id with bulk lookup requests, at most
+	 * bulkLookupMaxBatchSize users per request.
+	 * @return users found, keyed by the requested username or id. Users not found are absent
+	 */
+	public Map<String, JsonObject> findUsersByUsernames(Collection<String> queries) {
+		Map<String, JsonObject> users = new HashMap<>();
+		for (List<String> batch : toBatches(queries)) {
+			users.putAll(toUsersByQuery(batch, stopOnError(executeSecuredCall(BULK_LOOKUP, bulkLookupRequest(batch))).getResponseAsJsonArray()));
+		}
+		return users;
+	}
+
+	public CompletableFuture<Map<String, JsonObject>> findUsersByUsernamesAsync(Collection<String> queries) {
+		List<CompletableFuture<Map<String, JsonObject>>> batches = new ArrayList<>();
+		for (List<String> batch : toBatches(queries)) {
+			batches.add(executeSecuredCallAsync(BULK_LOOKUP, bulkLookupRequest(batch))
+					.thenApply(response -> toUsersByQuery(batch, stopOnError(response).getResponseAsJsonArray())));
+		}
+		return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+			Map<String, JsonObject> users = new HashMap<>();
+			batches.forEach(batch -> users.putAll(batch.join()));
+			return users;
+		});
+	}
+
+	public boolean isBulkLookupSupported() {
+		return !BULK_LOOKUP_NONE.equals(configuration.getBulkLookupMode());
+	}
+
+	/**
+	 * Translate Keycloak search attributes to API query parameters. Username and the free search
+	 * are sent as the username parameter, other attributes use the configured search attribute mapping.
+	 * An attribute without mapping makes the search unsupported, as dropping it would return users not matching it.
+	 *
+	 * @param attributes Keycloak search attributes
+	 * @param strict Whether the Keycloak internal search options, such as including service accounts, make the search
+	 *               unsupported too, or are just ignored
+	 * @return API query parameters, or null if the search is not supported by the API
+	 */
+	public Map<String, String> toQueryParameters(Map<String, String> attributes, boolean strict) {
+		Map<String, String> query = new LinkedHashMap<>();
+		for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+			String name = attribute.getKey();
+			if (SEARCH.equals(name) && (attribute.getValue() == null || attribute.getValue().isBlank() || "*".equals(attribute.getValue().trim()))) {
+				logger.debug("Ignoring search for all users");
+			} else if (USERNAME.equals(name) || SEARCH.equals(name)) {
+				query.put("username", attribute.getValue());
+			} else if (configuration.getSearchAttributeMapping().containsKey(name)) {
+				query.put(configuration.getSearchAttributeMapping().get(name), attribute.getValue());
+			} else if (!strict && isSearchOption(name)) {
+				logger.debugv("Ignoring search option {0}", name);
+			} else {
+				logger.infov("Attribute {0} can not be searched in the API", name);
+				return null;
+			}
+		}
+		return query;
+	}
+
+	/**
+	 * @return whether the search attribute is an option of the Keycloak search, not a filter of the users
+	 */
+	private static boolean isSearchOption(String name) {
+		return INCLUDE_SERVICE_ACCOUNT.equals(name) || EXACT.equals(name);
+	}
+
+	/**
+	 * Get the number of users in the API, as configured by the count mode.
+	 * @return the number of users, or 0 if counting is disabled
+	 */
+	public int countUsers() {
+		switch (configuration.getCountMode()) {
+			case COUNT_ENDPOINT:
+				logger.infov("Counting users with endpoint {0}", configuration.getCountEndpoint());
+				SimpleHttpResponse response = stopOnError(executeSecuredCall(COUNT_USERS, new HttpGet(configuration.getBaseUrl() + configuration.getCountEndpoint())));
+				JsonValue count = response.getResponseAsJsonValue();
+				if (count instanceof JsonNumber) {
+					return ((JsonNumber) count).intValue();
+				}
+				if (count instanceof JsonObject) {
+					JsonValue value = ((JsonObject) count).get("count");
+					if (value instanceof JsonNumber) return ((JsonNumber) value).intValue();
+					if (value instanceof JsonString) return parseCount(((JsonString) value).getString());
+				}
+				if (count instanceof JsonString) {
+					return parseCount(((JsonString) count).getString());
+				}
+				throw backendError(new IllegalStateException("Unexpected users count received: " + count));
+			case COUNT_HEADER:
+				logger.infov("Counting users with header {0}", configuration.getCountHeader());
+				String total = stopOnError(executeSecuredCall(COUNT_USERS, countUsersRequest())).getHeader(configuration.getCountHeader());
+				if (total == null) {
+					throw backendError(new IllegalStateException("Header " + configuration.getCountHeader() + " not received in users search"));
+				}
+				return parseCount(total);
+			default:
+				return 0;
+		}
+	}
+
+	private int parseCount(String count) {
+		try {
+			return Integer.parseInt(count.trim());
+		}
+		catch (NumberFormatException nfe) {
+			throw backendError(nfe);
+		}
+	}
+
+	public boolean isPagingSupported() {
+		return configuration.getSearchPagingSupported();
+	}
+
+	public int getSearchPageSize() {
+		return configuration.getSearchPageSize();
+	}
+
+	public JsonObject createUser(String username) {
+		return stopOnError(executeSecuredCall(CREATE_USER, createUserRequest(username))).getResponseAsJsonObject();
+	}
+
+	public CompletableFuture<JsonObject> createUserAsync(String username) {
+		return executeSecuredCallAsync(CREATE_USER, createUserRequest(username)).thenApply(response -> stopOnError(response).getResponseAsJsonObject());
+	}
+
+	public void deleteUser(String username) {
+		stopOnError( executeSecuredCall(DELETE_USER, deleteUserRequest(username)));
+	}
+
+	public CompletableFuture<Void> deleteUserAsync(String username) {
+		return executeSecuredCallAsync(DELETE_USER, deleteUserRequest(username)).thenAccept(this::stopOnError);
+	}
+
+	/* ------------------------------------------------------------------------ */
+	/* Requests builders                                                        */
+	/* ------------------------------------------------------------------------ */
+
+	private HttpPost authenticateRequest(String username, String password) {
 		logger.infov("Authenticating user: {0}", username);
 		HttpPost httpPost = new HttpPost(configuration.getBaseUrl() + "/authenticate");
 		httpPost.setHeader(ACCEPT, APPLICATION_JSON.getMimeType());
 		httpPost.setHeader(CONTENT_TYPE, APPLICATION_JSON.getMimeType());
-		httpPost.setHeader(CONNECTION, CONN_KEEP_ALIVE);
 
 		JsonObject json = createObjectBuilder()
 				.add("username", username)
 				.add("password", password)
 				.build();
-		HttpEntity entity = new ByteArrayEntity(json.toString().getBytes());
-		httpPost.setEntity(entity);
-
-		SimpleHttpResponse response = executeCall(httpPost);
-		return response.isSuccess();
+		compression.setEntity(httpPost, json.toString().getBytes());
+		return httpPost;
 	}
 
-	public JsonObject findUserByUsername(String username) {
+	private HttpGet findUserByUsernameRequest(String username, String etag, String lastModified) {
 		logger.infov("Finding user by username: {0}", username);
-		SimpleHttpResponse response = executeSecuredCall(new HttpGet(configuration.getBaseUrl() + "/users/" + username));
-		return response.isSuccess()? response.getResponseAsJsonObject() : null;
+		HttpGet httpGet = new HttpGet(configuration.getBaseUrl() + "/users/" + username);
+		if(etag != null) httpGet.setHeader(IF_NONE_MATCH, etag);
+		if(lastModified != null) httpGet.setHeader(IF_MODIFIED_SINCE, lastModified);
+		return httpGet;
 	}
 
-	public void setUserAttribute(String username, String attribute, String value) {
-		logger.infov("Setting user {0} attribute {1}: {2}", username, attribute, value);
+	private HttpPatch patchUserRequest(String username, Map<String, String> attributes) {
+		logger.infov("Setting user {0} attributes {1}", username, attributes.keySet());
 
 		HttpPatch httpPatch = new HttpPatch(configuration.getBaseUrl() + "/users/" + username);
 		httpPatch.setHeader("Content-Type", "application/json");
-		JsonObject requestJson = createObjectBuilder().add(attribute, value).build();
+		JsonObjectBuilder builder = createObjectBuilder();
+		attributes.forEach((attribute, value) -> {
+			if(value == null) {
+				builder.addNull(attribute);
+			} else {
+				builder.add(attribute, value);
+			}
+		});
+		JsonObject requestJson = builder.build();
 		logger.infov("Setting patch body as: {0}", requestJson.toString());
 
-		HttpEntity httpEntity = new ByteArrayEntity(requestJson.toString().getBytes());
-		httpPatch.setEntity(httpEntity);
+		compression.setEntity(httpPatch, requestJson.toString().getBytes());
+		return httpPatch;
+	}
 
-		stopOnError(executeSecuredCall(httpPatch));
+	private Map<String, String> usernameQuery(String username) {
+		return username != null ? Map.of("username", username) : emptyMap();
 	}
 
-	public Map<String, Integer> getStats() {
-		HashMap<String, Integer> stats = new HashMap<>();
-		PoolStats poolStats = poolingHttpClientConnectionManager.getTotalStats();
-		stats.put("maxConnections", poolStats.getMax());
-		stats.put("defaultMaxPerRoute", poolingHttpClientConnectionManager.getDefaultMaxPerRoute());
-		stats.put("availableConnections", poolStats.getAvailable());
-		stats.put("leasedConnections", poolStats.getLeased());
-		stats.put("pendingConnections", poolStats.getPending());
-		return stats;
+	/**
+	 * Search of a single user, whatever the paging configuration, to read the total count header
+	 * without downloading the whole directory.
+	 */
+	private HttpGet countUsersRequest() {
+		try {
+			URIBuilder searchUrl = new URIBuilder(configuration.getBaseUrl() + "/users");
+			searchUrl.addParameter(configuration.getSearchMaxParam(), "1");
+			return new HttpGet(searchUrl.build());
+		}
+		catch(URISyntaxException use) {
+			throw new IllegalArgumentException("Invalid search url", use);
+		}
 	}
 
-	public JsonArray findUsers(String username) {
-		logger.infov("Finding users with username: {0}", username);
-		String searchUrl = configuration.getBaseUrl() + "/users";
-		if(username != null) {
-			searchUrl += "?username=" + username;
+	private HttpGet findUsersRequest(Map<String, String> query, Integer first, Integer max) {
+		logger.infov("Finding users with query: {0}", query);
+		try {
+			URIBuilder searchUrl = new URIBuilder(configuration.getBaseUrl() + "/users");
+			query.forEach(searchUrl::addParameter);
+			if(configuration.getSearchPagingSupported()) {
+				if(first != null) {
+					searchUrl.addParameter(configuration.getSearchFirstParam(), String.valueOf(first));
+				}
+				if(max != null && max != Integer.MAX_VALUE) {
+					searchUrl.addParameter(configuration.getSearchMaxParam(), String.valueOf(max));
+				}
+			}
+			logger.infov("Using url {0} to search users", searchUrl);
+			return new HttpGet(searchUrl.build());
+		}
+		catch(URISyntaxException use) {
+			throw new IllegalArgumentException("Invalid search url", use);
 		}
-		logger.infov("Using url {0} to search users", searchUrl);
-		SimpleHttpResponse response = executeSecuredCall(new HttpGet(searchUrl));
-		stopOnError(response);
-		return response.getResponseAsJsonArray();
 	}
 
-	public JsonObject createUser(String username) {
+	private HttpPost createUserRequest(String username) {
 		logger.infov("Creating user {0}", username);
 
 		HttpPost httpPost = new HttpPost(configuration.getBaseUrl() + "/users");
-		httpPost.setHeader(CONN_DIRECTIVE, CONN_KEEP_ALIVE);
 		httpPost.setHeader(CONTENT_TYPE, APPLICATION_JSON.getMimeType());
 
 		JsonObjectBuilder builder = createObjectBuilder();
@@ -160,171 +514,355 @@ public class RestHandler {
 		builder.add("firstName", "TempFirstName");
 		builder.add("lastName", "TempLastName");
 		builder.add("password", randomPassword());
-		builder.add("active", TRUE);
+		builder.add(ACTIVE, TRUE);
 
 		JsonObject requestJson = builder.build();
 		logger.infov("Setting create body as: {0}", requestJson.toString());
-		httpPost.setEntity(new ByteArrayEntity(requestJson.toString().getBytes()));
-
-		SimpleHttpResponse response = executeSecuredCall(httpPost);
-		stopOnError(response);
-		return response.getResponseAsJsonObject();
+		compression.setEntity(httpPost, requestJson.toString().getBytes());
+		return httpPost;
 	}
 
-	public void deleteUser(String username) {
+	private HttpDelete deleteUserRequest(String username) {
 		logger.infov("Deleting user {0}", username);
-		stopOnError( executeSecuredCall(new HttpDelete(configuration.getBaseUrl() + "/users/" + username)));
+		return new HttpDelete(configuration.getBaseUrl() + "/users/" + username);
 	}
 
-	/* ------------------------------------------------------------------------ */
-	/* HTTP calls handlers                                                      */
-	/* ------------------------------------------------------------------------ */
+	private HttpRequestBase bulkLookupRequest(List<String> queries) {
+		logger.infov("Finding {0} users with bulk lookup", queries.size());
+		try {
+			if (BULK_LOOKUP_POST.equals(configuration.getBulkLookupMode())) {
+				HttpPost httpPost = new HttpPost(configuration.getBaseUrl() + configuration.getBulkLookupEndpoint());
+				httpPost.setHeader(CONTENT_TYPE, APPLICATION_JSON.getMimeType());
+				JsonObject requestJson = createObjectBuilder().add("usernames", createArrayBuilder(queries)).build();
+				compression.setEntity(httpPost, requestJson.toString().getBytes());
+				return httpPost;
+			}
+			URIBuilder lookupUrl = new URIBuilder(configuration.getBaseUrl() + "/users");
+			queries.forEach(query -> lookupUrl.addParameter(configuration.getBulkLookupParam(), query));
+			return new HttpGet(lookupUrl.build());
+		}
+		catch(URISyntaxException use) {
+			throw new IllegalArgumentException("Invalid bulk lookup url", use);
+		}
+	}
+
+	private List<List<String>> toBatches(Collection<String> queries) {
+		List<String> all = new ArrayList<>(new LinkedHashSet<>(queries));
+		int batchSize = Math.max(configuration.getBulkLookupMaxBatchSize(), 1);
+		List<List<String>> batches = new ArrayList<>();
+		for (int i = 0; i < all.size(); i += batchSize) {
+			batches.add(all.subList(i, Math.min(i + batchSize, all.size())));
+		}
+		return batches;
+	}
 
 	/**
-	 * Close quietly a http response
-	 * @param response Response to be closed
+	 * Match the users returned by a bulk lookup with the requested usernames or ids.
 	 */
-	private void closeQuietly(CloseableHttpResponse response) {
-		if (response != null)
-			try {
-				response.close();
-			} catch (IOException io) {
-				logger.warn("Error closing http response", io);
-			}
+	private Map<String, JsonObject> toUsersByQuery(List<String> queries, JsonArray usersJson) {
+		Map<String, JsonObject> found = new HashMap<>();
+		for (JsonObject user : usersJson.getValuesAs(JsonObject.class)) {
+			if (user.containsKey("username")) found.put(user.getString("username"), user);
+			JsonValue id = user.get("id");
+			if (id instanceof JsonString) found.put(((JsonString) id).getString(), user);
+			else if (id instanceof JsonNumber) found.put(id.toString(), user);
+		}
+		Map<String, JsonObject> users = new HashMap<>();
+		for (String query : queries) {
+			if (found.containsKey(query)) users.put(query, found.get(query));
+		}
+		return users;
 	}
 
+	/**
+	 * @return the user received, or null if the API answered it does not exist
+	 * @throws ForkFlowException if the API failed, so it is not mistaken for a missing user
+	 */
+	private JsonObject userOrNull(SimpleHttpResponse response) {
+		if(response.getStatus() == SC_NOT_FOUND) {
+			return null;
+		}
+		return stopOnError(response).getResponseAsJsonObject();
+	}
+
+	private VersionedUser versionedUserOrNull(SimpleHttpResponse response) {
+		if(response.isNotModified()) {
+			return new VersionedUser(null, response.getHeader(ETAG), response.getHeader(LAST_MODIFIED), true);
+		}
+		JsonObject user = userOrNull(response);
+		return user == null
+				? VersionedUser.of(null)
+				: new VersionedUser(user, response.getHeader(ETAG), response.getHeader(LAST_MODIFIED), false);
+	}
+
+	/* ------------------------------------------------------------------------ */
+	/* HTTP calls handlers                                                      */
+	/* ------------------------------------------------------------------------ */
+
 	/**
 	 * Execute http request throw the executeCall but adding custom Http Headers to include
-	 * authorization credentials.
+	 * authorization credentials. With OAUTH authorization, a request rejected with 401 is retried
+	 * once with a newly negotiated access_token.
 	 *
 	 * @param request Http request to be executed
 	 * @return SimpleHttpResponse with status code and response body
 	 */
-	private SimpleHttpResponse executeSecuredCall(HttpRequestBase request) {
+	private SimpleHttpResponse executeSecuredCall(RestOperation operation, HttpRequestBase request) {
 		switch (configuration.getAuthType()) {
 			case AUTH_OAUTH:
-				request.setHeader(AUTHORIZATION, "Bearer " + getAccessToken());
+				String accessToken = tokenManager.getAccessToken();
+				request.setHeader(AUTHORIZATION, "Bearer " + accessToken);
+				SimpleHttpResponse response = executeCall(operation, request);
+				if (response.getStatus() != SC_UNAUTHORIZED) {
+					return response;
+				}
+				logger.warn("Access token rejected by the API. Retrying with a new one");
+				tokenManager.invalidate(accessToken);
+				request.setHeader(AUTHORIZATION, "Bearer " + tokenManager.getAccessToken());
+				break;
+			case RestConfiguration.AUTH_BASIC:
+				request.setHeader(AUTHORIZATION, "Basic " + getBasicAuthenticationToken());
 				break;
+		}
+		return executeCall(operation, request);
+	}
+
+	/**
+	 * Asynchronous version of {@link #executeSecuredCall(RestOperation, HttpRequestBase)}.
+	 */
+	private CompletableFuture<SimpleHttpResponse> executeSecuredCallAsync(RestOperation operation, HttpRequestBase request) {
+		switch (configuration.getAuthType()) {
+			case AUTH_OAUTH:
+				String accessToken = tokenManager.getAccessToken();
+				request.setHeader(AUTHORIZATION, "Bearer " + accessToken);
+				return executeCallAsync(operation, request).thenCompose(response -> {
+					if (response.getStatus() != SC_UNAUTHORIZED) {
+						return completedFuture(response);
+					}
+					logger.warn("Access token rejected by the API. Retrying with a new one");
+					tokenManager.invalidate(accessToken);
+					request.setHeader(AUTHORIZATION, "Bearer " + tokenManager.getAccessToken());
+					return executeCallAsync(operation, request);
+				});
 			case RestConfiguration.AUTH_BASIC:
 				request.setHeader(AUTHORIZATION, "Basic " + getBasicAuthenticationToken());
 				break;
 		}
-		return executeCall(request);
+		return executeCallAsync(operation, request);
 	}
 
 	/**
-	 * Execute http request with the connection pool and handle the received response.
-	 * If the response status is not OK it throws a {@link RuntimeException} to stop the flow.
+	 * Execute http request with the configured transport and handle the received response.
+	 * Idempotent requests failing without response or with a gateway error are retried, as decided by the
+	 * {@link RetryPolicy}. If the request can not be executed it throws a {@link RuntimeException} to stop the flow.
 	 *
+	 * @param operation Operation being executed, used to tag metrics
 	 * @param request Request to be executed with all needed headers.
 	 * @return SimpleHttpResponse with code received and body
-	 * @throws RuntimeException if status code received is not 200
+	 * @throws RuntimeException if the request fails
 	 */
-	private SimpleHttpResponse executeCall(HttpRequestBase request) {
-		logger.debugv("Executing Http Request [{0}] on [{1}]", request.getMethod(), request.getURI());
-		request.setHeader(CONNECTION, CONN_KEEP_ALIVE);
+	private SimpleHttpResponse executeCall(RestOperation operation, HttpRequestBase request) {
+		prepareRequest(request);
+		retryPolicy.onRequest();
+		for(int attempt = 1; ; attempt++) {
+			try {
+				SimpleHttpResponse response = executeAttempt(operation, request);
+				if(!retryPolicy.isRetryable(operation, request, response.getStatus()) || !retryPolicy.tryRetry(attempt)) {
+					return logResponse(response);
+				}
+				logger.warnv("Retrying {0} call after receiving status {1}", operation.getMetricName(), response.getStatus());
+			}
+			catch(IOException io) {
+				if(!retryPolicy.isRetryable(operation, request, io) || !retryPolicy.tryRetry(attempt)) {
+					throw backendError(io);
+				}
+				logger.warnv("Retrying {0} call after error: {1}", operation.getMetricName(), io.getMessage());
+			}
+			catch(RuntimeException re) {
+				throw backendError(re);
+			}
+			sleep(retryPolicy.backoff(attempt));
+		}
+	}
 
-		of( request.getAllHeaders() ).forEach(header -> logger.debugv("Request header: {0} -> {1}", header.getName(), header.getValue() ));
-		CloseableHttpResponse response = null;
+	/**
+	 * Asynchronous version of {@link #executeCall(RestOperation, HttpRequestBase)}. The returned future completes
+	 * exceptionally with a {@link ForkFlowException} if the request can not be executed.
+	 */
+	private CompletableFuture<SimpleHttpResponse> executeCallAsync(RestOperation operation, HttpRequestBase request) {
+		prepareRequest(request);
+		retryPolicy.onRequest();
+		return executeCallAsync(operation, request, 1);
+	}
+
+	private CompletableFuture<SimpleHttpResponse> executeCallAsync(RestOperation operation, HttpRequestBase request, int attempt) {
+		return executeAttemptAsync(operation, request).handle((response, error) -> {
+			Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+			boolean retryable = cause != null
+					? cause instanceof IOException && retryPolicy.isRetryable(operation, request, (IOException) cause)
+					: retryPolicy.isRetryable(operation, request, response.getStatus());
+			if(retryable && retryPolicy.tryRetry(attempt)) {
+				logger.warnv("Retrying {0} call after {1}", operation.getMetricName(), cause != null ? "error: " + cause.getMessage() : "receiving status " + response.getStatus());
+				Executor delayed = CompletableFuture.delayedExecutor(retryPolicy.backoff(attempt), MILLISECONDS);
+				return CompletableFuture.runAsync(() -> {}, delayed).thenCompose(ignored -> executeCallAsync(operation, request, attempt + 1));
+			}
+			if(cause != null) {
+				return CompletableFuture.<SimpleHttpResponse>failedFuture(backendError(cause));
+			}
+			return completedFuture(logResponse(response));
+		}).thenCompose(identity());
+	}
+
+	/**
+	 * Send a request once, through the operation bulkhead and the circuit breaker.
+	 */
+	private SimpleHttpResponse executeAttempt(RestOperation operation, HttpRequestBase request) throws IOException {
+		compression.acceptEncoding(request);
+		acquire(operation, true);
+		long startTime = metrics.requestStarted(operation);
 		try {
-			response = httpClient.execute(request);
-			String responseString = EntityUtils.toString(response.getEntity(), "UTF-8");
-			logger.debugv("Response code obtained from server: {0}", response.getStatusLine().getStatusCode());
-			logger.debugv("Response body obtained from server: {0}", responseString);
-			return new SimpleHttpResponse(response.getStatusLine().getStatusCode(), responseString);
-		}
-		catch(ConnectionPoolTimeoutException cpte) {
-			logger.errorv("Connection pool timeout exception: {0}", cpte);
-			throw new ForkFlowException(new FormMessage(""), new FormMessage(BACKEND_AUTHENTICATION_ERROR));
+			SimpleHttpResponse response = transport.execute(request);
+			completed(operation, startTime, response);
+			return response;
 		}
-		catch(ConnectTimeoutException cte) {
-			logger.errorv("Connect timeout exception: {0}", cte);
-			throw new ForkFlowException(new FormMessage(""), new FormMessage(BACKEND_AUTHENTICATION_ERROR));
+		catch(Throwable error) {
+			// any failure, not only IOException, must give back the circuit breaker permit and the in-flight count
+			failed(operation, startTime, request, error);
+			throw error;
 		}
-		catch(SocketTimeoutException ste) {
-			logger.errorv("Socket timeout exception: {0}", ste);
-			throw new ForkFlowException(new FormMessage(""), new FormMessage(BACKEND_AUTHENTICATION_ERROR));
+		finally {
+			bulkheads.release(operation);
 		}
-		catch(IOException io) {
-			logger.errorv("Error executing request: {0}", io);
-			throw new ForkFlowException(new FormMessage(""), new FormMessage(BACKEND_AUTHENTICATION_ERROR));
+	}
+
+	/**
+	 * Asynchronous version of {@link #executeAttempt(RestOperation, HttpRequestBase)}. The returned future
+	 * completes exceptionally with the transport error, or the {@link ForkFlowException} of a rejected call.
+	 */
+	private CompletableFuture<SimpleHttpResponse> executeAttemptAsync(RestOperation operation, HttpRequestBase request) {
+		compression.acceptEncoding(request);
+		try {
+			acquire(operation, false);
 		}
-		finally {
-			closeQuietly(response);
+		catch(ForkFlowException ffe) {
+			return CompletableFuture.failedFuture(ffe);
+		}
+		long startTime = metrics.requestStarted(operation);
+		CompletableFuture<SimpleHttpResponse> future;
+		try {
+			future = transport.executeAsync(request);
 		}
+		catch(RuntimeException re) {
+			// e.g. the async executor rejecting the request after being shut down
+			future = CompletableFuture.failedFuture(re);
+		}
+		return future.whenComplete((response, error) -> {
+			bulkheads.release(operation);
+			if(error != null) {
+				failed(operation, startTime, request, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+			} else {
+				completed(operation, startTime, response);
+			}
+		});
 	}
 
-	private String getBasicAuthenticationToken() {
-		if(basicToken == null) {
-			this.basicToken = configuration.getBasicUsername() + ":" + configuration.getBasicPassword();
-			this.basicToken = Base64.getEncoder().encodeToString( basicToken.getBytes() );
+	private void completed(RestOperation operation, long startTime, SimpleHttpResponse response) {
+		long duration = System.nanoTime() - startTime;
+		metrics.requestCompleted(operation, startTime, response.getStatus());
+		circuitBreaker.record(isServerError(response), duration);
+		if(operation == FIND_USER && response.getStatus() < 500) {
+			retryPolicy.recordLatency(duration);
 		}
-		return basicToken;
 	}
 
-	private String getAccessToken() {
-		if(accessToken == null) {
-			logger.debug("Requesting access token");
-			requestAccessToken();
+	private void failed(RestOperation operation, long startTime, HttpRequestBase request, Throwable error) {
+		metrics.requestFailed(operation, startTime, error);
+		if(request.isAborted()) {
+			// aborted by us, e.g. the losing request of a hedged lookup: it says nothing about the API health
+			circuitBreaker.release();
 		} else {
-			logger.debugv("Current access_token expires at {0} / Current time {1}", tokenExpiresAt, new Date());
-			if( tokenExpiresAt.before( new Date())) {
-				logger.debug("Refreshing access token");
-				try {
-					refreshAccessToken();
-				}
-				catch(ForkFlowException re) {
-					logger.error("Error refreshing access token. Trying to generate a new one", re);
-					requestAccessToken();
-				}
-			}
+			circuitBreaker.record(true, System.nanoTime() - startTime);
+		}
+	}
+
+	private void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		}
+		catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw backendError(ie);
 		}
-		return accessToken;
 	}
 
-	private void requestAccessToken() {
-		logger.infov("Current client_id: {0}", configuration.getOauthClientId());
-		logger.infov("Requesting access_token to consume Rest User API: {0}", configuration.getOauthTokenEndpoint());
-		HttpPost httpPost = new HttpPost(configuration.getOauthTokenEndpoint());
-		httpPost.setHeader(CONTENT_TYPE, APPLICATION_FORM_URLENCODED.getMimeType());
+	/**
+	 * Take a slot of the operation bulkhead and check the circuit breaker allows calling the API.
+	 * Both fail fast with a {@link ForkFlowException}, instead of waiting for an overloaded API.
+	 * @param wait Whether to wait the bulkhead max wait for a slot. Asynchronous calls do not, so their caller is not blocked
+	 */
+	private void acquire(RestOperation operation, boolean wait) {
+		if(!(wait ? bulkheads.tryAcquire(operation) : bulkheads.tryAcquireNow(operation))) {
+			logger.debugv("Too many concurrent {0} calls to the API. Rejecting call", operation.getMetricName());
+			metrics.requestRejected(operation, "bulkhead_full");
+			throw new ForkFlowException(new FormMessage(""), new FormMessage(BACKEND_AUTHENTICATION_ERROR));
+		}
+		if(!circuitBreaker.tryAcquire()) {
+			bulkheads.release(operation);
+			logger.debugv("Circuit breaker is open. Rejecting {0} call to the API", operation.getMetricName());
+			metrics.requestRejected(operation, "circuit_open");
+			throw new ForkFlowException(new FormMessage(""), new FormMessage(BACKEND_AUTHENTICATION_ERROR));
+		}
+	}
 
-		List<NameValuePair> form = new ArrayList<>();
-		form.add(new BasicNameValuePair("grant_type", "client_credentials"));
-		form.add(new BasicNameValuePair("client_id", configuration.getOauthClientId()));
-		form.add(new BasicNameValuePair("client_secret", configuration.getOauthClientSecret()));
-		form.add(new BasicNameValuePair("scope", configuration.getOauthScope()));
-		httpPost.setEntity(new UrlEncodedFormEntity(form, UTF_8));
+	private boolean isServerError(SimpleHttpResponse response) {
+		return response.getStatus() >= 500;
+	}
 
-		SimpleHttpResponse response = executeCall(httpPost);
-		stopOnError(response);
-		JsonObject jsonResponse = response.getResponseAsJsonObject();
-		this.accessToken = jsonResponse.getString("access_token");
-		this.refreshToken = jsonResponse.getString("refresh_token");
-		this.tokenExpiresAt = new Date(currentTimeMillis() + jsonResponse.getInt("expires_in") * 1000);
+	private void prepareRequest(HttpRequestBase request) {
+		logger.debugv("Executing Http Request [{0}] on [{1}]", request.getMethod(), request.getURI());
+		if(!configuration.isHttp2()) {
+			// connection-specific headers are not allowed in HTTP/2
+			request.setHeader(CONNECTION, CONN_KEEP_ALIVE);
+		}
+		of( request.getAllHeaders() ).forEach(header -> logger.debugv("Request header: {0} -> {1}", header.getName(), header.getValue() ));
 	}
 
-	private void refreshAccessToken() {
-		logger.infov("Refreshing access_token to consume Rest User API: {0}", configuration.getOauthTokenEndpoint());
-		HttpPost httpPost = new HttpPost(configuration.getOauthTokenEndpoint());
-		httpPost.setHeader(CONTENT_TYPE, APPLICATION_FORM_URLENCODED.getMimeType());
+	private SimpleHttpResponse logResponse(SimpleHttpResponse response) {
+		logger.debugv("Response code obtained from server: {0}", response.getStatus());
+		if(response.getResponse() != null) {
+			logger.debugv("Response body obtained from server: {0}", response.getResponse());
+		}
+		return response;
+	}
 
-		List<NameValuePair> form = new ArrayList<>();
-		form.add(new BasicNameValuePair("grant_type", "refresh_token"));
-		form.add(new BasicNameValuePair("client_id", configuration.getOauthClientId()));
-		form.add(new BasicNameValuePair("client_secret", configuration.getOauthClientSecret()));
-		form.add(new BasicNameValuePair("refresh_token", refreshToken));
-		UrlEncodedFormEntity entity = new UrlEncodedFormEntity(form, UTF_8);
-		httpPost.setEntity(entity);
+	private ForkFlowException backendError(Throwable error) {
+		if(error instanceof ForkFlowException) {
+			return (ForkFlowException) error;
+		}
+		if(error instanceof ConnectionPoolTimeoutException) {
+			logger.errorv("Connection pool timeout exception: {0}", error);
+		}
+		else if(error instanceof ConnectTimeoutException || error instanceof HttpConnectTimeoutException) {
+			logger.errorv("Connect timeout exception: {0}", error);
+		}
+		else if(error instanceof SocketTimeoutException || error instanceof HttpTimeoutException) {
+			logger.errorv("Socket timeout exception: {0}", error);
+		}
+		else {
+			logger.errorv("Error executing request: {0}", error);
+		}
+		return new ForkFlowException(new FormMessage(""), new FormMessage(BACKEND_AUTHENTICATION_ERROR));
+	}
 
-		SimpleHttpResponse response = executeCall(httpPost);
-		stopOnError(response);
-		JsonObject jsonResponse = response.getResponseAsJsonObject();
-		this.accessToken = jsonResponse.getString("access_token");
-		this.refreshToken = jsonResponse.getString("refresh_token");
-		this.tokenExpiresAt = new Date(currentTimeMillis() + jsonResponse.getInt("expires_in") * 1000);
+	private String getBasicAuthenticationToken() {
+		if(basicToken == null) {
+			this.basicToken = configuration.getBasicUsername() + ":" + configuration.getBasicPassword();
+			this.basicToken = Base64.getEncoder().encodeToString( basicToken.getBytes() );
+		}
+		return basicToken;
 	}
 
-	private void stopOnError(SimpleHttpResponse response) {
+	private SimpleHttpResponse stopOnError(SimpleHttpResponse response) {
 		if(!response.isSuccess()) {
 			StringBuffer buffer = new StringBuffer();
 			buffer.append("Response status code was not success. Code received: ");
@@ -335,5 +873,6 @@ public class RestHandler {
 			logger.errorv(buffer.toString());
 			throw new ForkFlowException(new FormMessage(""), new FormMessage(BACKEND_AUTHENTICATION_ERROR));
 		}
+		return response;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,268 @@
+package com.identicum.keycloak;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.jboss.logging.Logger;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Micrometer metrics of the calls made to the Rest User API. Meters are registered in the global
+ * registry, which Keycloak publishes in its metrics endpoint when metrics are enabled.
+ */
+public class RestMetrics {
+
+	private static final Logger logger = getLogger(RestMetrics.class);
+
+	public static final String PREFIX = "keycloak.rest.repo.";
+
+	// registry without children, whose meters record nothing
+	private static final MeterRegistry NOOP_REGISTRY = new CompositeMeterRegistry();
+	// status tag of the request timers, by index: no response, then each status class
+	private static final String[] STATUS_CLASSES = { "NONE", "1xx", "2xx", "3xx", "4xx", "5xx" };
+
+	private final MeterRegistry registry;
+	private final Tags tags;
+	private final Map<RestOperation, AtomicInteger> inFlight = new EnumMap<>(RestOperation.class);
+	// registered on first use, then reused so recording a request does not build and look up its timer
+	private final Map<RestOperation, AtomicReferenceArray<Timer>> requestTimers = new EnumMap<>(RestOperation.class);
+	private final Timer poolLeaseTimer;
+	private final Set<Meter> meters = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param componentId Id of the component the meters are tagged with, so each federation provider reports its own. Null to skip the tag
+	 */
+	public RestMetrics(RestConfiguration configuration, String componentId) {
+		this.registry = configuration.getMetricsEnabled() ? Metrics.globalRegistry : new CompositeMeterRegistry();
+		this.tags = componentId == null ? Tags.empty() : Tags.of("component", componentId);
+		logger.infov("Initializing metrics. Enabled: {0}", configuration.getMetricsEnabled());
+		for (RestOperation operation : RestOperation.values()) {
+			AtomicInteger counter = new AtomicInteger();
+			inFlight.put(operation, counter);
+			track(Gauge.builder(PREFIX + "requests.in.flight", counter, AtomicInteger::get)
+					.description("Requests to the user API waiting for a response")
+					.tags(tags)
+					.tag("operation", operation.getMetricName())
+					.register(registry()));
+			requestTimers.put(operation, new AtomicReferenceArray<>(STATUS_CLASSES.length));
+		}
+		this.poolLeaseTimer = track(Timer.builder(PREFIX + "pool.lease")
+				.description("Time waiting for a connection of the HTTP pool")
+				.tags(tags)
+				.publishPercentiles(0.5, 0.95, 0.99)
+				.register(registry()));
+	}
+
+	/**
+	 * Register the start of a request.
+	 * @return start time, to be passed to {@link #requestCompleted} or {@link #requestFailed}
+	 */
+	public long requestStarted(RestOperation operation) {
+		inFlight.get(operation).incrementAndGet();
+		return System.nanoTime();
+	}
+
+	public void requestCompleted(RestOperation operation, long startTime, int status) {
+		inFlight.get(operation).decrementAndGet();
+		requestTimer(operation, statusClass(status)).record(System.nanoTime() - startTime, NANOSECONDS);
+	}
+
+	public void requestFailed(RestOperation operation, long startTime, Throwable error) {
+		inFlight.get(operation).decrementAndGet();
+		requestTimer(operation, 0).record(System.nanoTime() - startTime, NANOSECONDS);
+		track(Counter.builder(PREFIX + "requests.exceptions")
+				.description("Requests to the user API failed without a response")
+				.tags(tags)
+				.tag("operation", operation.getMetricName())
+				.tag("exception", error.getClass().getSimpleName())
+				.register(registry()))
+				.increment();
+	}
+
+	public void requestRejected(RestOperation operation, String reason) {
+		track(Counter.builder(PREFIX + "requests.rejected")
+				.description("Requests to the user API rejected without being sent, by the circuit breaker or a bulkhead")
+				.tags(tags)
+				.tag("operation", operation.getMetricName())
+				.tag("reason", reason)
+				.register(registry()))
+				.increment();
+	}
+
+	public void poolLeased(long waitNanos) {
+		poolLeaseTimer.record(waitNanos, NANOSECONDS);
+	}
+
+	/**
+	 * Register connections closed by the pool evictor.
+	 * @param reason IDLE or EXPIRED
+	 */
+	public void poolEvicted(String reason, int count) {
+		track(Counter.builder(PREFIX + "pool.evictions")
+				.description("Pooled connections to the user API closed because they were idle or expired")
+				.tags(tags)
+				.tag("reason", reason)
+				.register(registry()))
+				.increment(count);
+	}
+
+	/**
+	 * Publish the state of a circuit breaker: 0 closed, 1 open, 2 half open.
+	 */
+	public void bindCircuitBreaker(CircuitBreaker circuitBreaker) {
+		track(Gauge.builder(PREFIX + "circuit.breaker.state", circuitBreaker, breaker -> breaker.getState().ordinal())
+				.description("State of the circuit breaker of the user API: 0 closed, 1 open, 2 half open")
+				.tags(tags)
+				.register(registry()));
+	}
+
+	/**
+	 * Publish the hit, miss and eviction counters of a user cache.
+	 */
+	public void bindUserCache(UserCache userCache) {
+		track(Gauge.builder(PREFIX + "user.cache.size", userCache, UserCache::size)
+				.description("Users in the node cache")
+				.tags(tags)
+				.register(registry()));
+		track(FunctionCounter.builder(PREFIX + "user.cache.hits", userCache, UserCache::getHits)
+				.description("User lookups answered by the node cache")
+				.tags(tags)
+				.register(registry()));
+		track(FunctionCounter.builder(PREFIX + "user.cache.misses", userCache, UserCache::getMisses)
+				.description("User lookups not found in the node cache")
+				.tags(tags)
+				.register(registry()));
+		track(FunctionCounter.builder(PREFIX + "user.cache.evictions", userCache, UserCache::getEvictions)
+				.description("Users evicted from the node cache because it was full")
+				.tags(tags)
+				.register(registry()));
+		track(FunctionCounter.builder(PREFIX + "user.cache.stale.hits", userCache, UserCache::getStaleHits)
+				.description("User lookups answered with an expired user of the node cache")
+				.tags(tags)
+				.register(registry()));
+		track(FunctionCounter.builder(PREFIX + "user.cache.revalidations", userCache, UserCache::getRevalidations)
+				.description("Expired users of the node cache revalidated by the user API as not modified")
+				.tags(tags)
+				.register(registry()));
+		track(Gauge.builder(PREFIX + "user.cache.hit.ratio", userCache, RestMetrics::hitRatio)
+				.description("Ratio of user lookups answered by the node cache")
+				.tags(tags)
+				.register(registry()));
+	}
+
+	/**
+	 * Publish the hit and miss counters of a credential cache.
+	 */
+	public void bindCredentialCache(CredentialCache credentialCache) {
+		track(Gauge.builder(PREFIX + "credential.cache.size", credentialCache, CredentialCache::size)
+				.description("Validated passwords in the node cache")
+				.tags(tags)
+				.register(registry()));
+		track(FunctionCounter.builder(PREFIX + "credential.cache.hits", credentialCache, CredentialCache::getHits)
+				.description("Password validations answered by the node cache")
+				.tags(tags)
+				.register(registry()));
+		track(FunctionCounter.builder(PREFIX + "credential.cache.misses", credentialCache, CredentialCache::getMisses)
+				.description("Password validations sent to the user API")
+				.tags(tags)
+				.register(registry()));
+	}
+
+	public void bindCompression(ContentCompression compression) {
+		track(FunctionCounter.builder(PREFIX + "response.bytes", compression, ContentCompression::getResponseWireBytes)
+				.description("Bytes of the API response bodies, as received on the wire and once decoded")
+				.tags(tags)
+				.tag("layer", "wire")
+				.register(registry()));
+		track(FunctionCounter.builder(PREFIX + "response.bytes", compression, ContentCompression::getResponseDecodedBytes)
+				.description("Bytes of the API response bodies, as received on the wire and once decoded")
+				.tags(tags)
+				.tag("layer", "decoded")
+				.register(registry()));
+		track(FunctionCounter.builder(PREFIX + "request.bytes", compression, ContentCompression::getRequestWireBytes)
+				.description("Bytes of the request bodies sent to the API, as sent on the wire and before encoding")
+				.tags(tags)
+				.tag("layer", "wire")
+				.register(registry()));
+		track(FunctionCounter.builder(PREFIX + "request.bytes", compression, ContentCompression::getRequestRawBytes)
+				.description("Bytes of the request bodies sent to the API, as sent on the wire and before encoding")
+				.tags(tags)
+				.tag("layer", "decoded")
+				.register(registry()));
+	}
+
+	/**
+	 * Remove the meters of this instance from the registry, so a new handler created after a
+	 * configuration change does not keep reporting through gauges bound to the old one.
+	 * A retired handler still draining records into no-op meters from then on: meters registered
+	 * again with the same component tag would be the ones of the replacing handler.
+	 */
+	public synchronized void close() {
+		if(closed) return;
+		closed = true;
+		meters.forEach(registry::remove);
+		meters.clear();
+	}
+
+	private MeterRegistry registry() {
+		return closed ? NOOP_REGISTRY : registry;
+	}
+
+	private <T extends Meter> T track(T meter) {
+		if(!closed) meters.add(meter);
+		return meter;
+	}
+
+	private static int statusClass(int status) {
+		return Math.min(Math.max(status / 100, 1), STATUS_CLASSES.length - 1);
+	}
+
+	private static String outcome(int statusClass) {
+		if(statusClass == 0) return "EXCEPTION";
+		return statusClass == 2 || statusClass == 3 ? "SUCCESS" : "ERROR";
+	}
+
+	private static double hitRatio(UserCache userCache) {
+		long hits = userCache.getHits();
+		long lookups = hits + userCache.getMisses();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * Timer of the requests of an operation with the given status class, registered the first time it is needed.
+	 * Percentiles are computed by the metrics backend from the histogram buckets.
+	 */
+	private Timer requestTimer(RestOperation operation, int statusClass) {
+		AtomicReferenceArray<Timer> timers = requestTimers.get(operation);
+		Timer timer = timers.get(statusClass);
+		if(timer == null) {
+			// registering twice returns the same meter, so a concurrent first use is harmless
+			timer = track(Timer.builder(PREFIX + "requests")
+					.description("Requests to the user API")
+					.tags(tags)
+					.tag("operation", operation.getMetricName())
+					.tag("status", STATUS_CLASSES[statusClass])
+					.tag("outcome", outcome(statusClass))
+					.publishPercentileHistogram()
+					.register(registry()));
+			timers.set(statusClass, timer);
+		}
+		return timer;
+	}
+}
@@ -0,0 +1,34 @@
+package com.identicum.keycloak;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Calls made to the Rest User API, used to tag metrics and to configure per operation limits.
+ */
+@Getter
+@AllArgsConstructor
+public enum RestOperation {
+
+	AUTHENTICATE("authenticate"),
+	FIND_USER("findUserByUsername"),
+	FIND_USERS("findUsers"),
+	BULK_LOOKUP("findUsersByUsernames"),
+	COUNT_USERS("countUsers"),
+	CREATE_USER("createUser"),
+	UPDATE_USER("setUserAttribute"),
+	DELETE_USER("deleteUser"),
+	TOKEN("token");
+
+	private final String metricName;
+
+	/**
+	 * @return the operation with the given metric name, or null if there is none
+	 */
+	public static RestOperation fromMetricName(String metricName) {
+		for (RestOperation operation : values()) {
+			if (operation.metricName.equals(metricName)) return operation;
+		}
+		return null;
+	}
+}
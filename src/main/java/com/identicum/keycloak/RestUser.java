@@ -0,0 +1,119 @@
+package com.identicum.keycloak;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.storage.StorageId;
+
+import jakarta.json.JsonObject;
+import jakarta.json.JsonString;
+import jakarta.json.JsonValue;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.valueOf;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableMap;
+import static org.keycloak.models.UserModel.EMAIL;
+import static org.keycloak.models.UserModel.FIRST_NAME;
+import static org.keycloak.models.UserModel.LAST_NAME;
+import static org.keycloak.storage.StorageId.keycloakId;
+
+/**
+ * Immutable user decoded once from the JSON returned by the API. The values read by Keycloak, the
+ * attributes map and the Keycloak id are computed when the user is decoded, so the adapters sharing it
+ * through the node cache answer every getter without parsing or allocating.
+ */
+@Getter
+public class RestUser {
+
+	public static final String ACTIVE = "active";
+
+	private final String externalId;
+	private final String username;
+	private final String firstName;
+	private final String lastName;
+	private final String email;
+	private final boolean enabled;
+	/**
+	 * Unmodifiable map of the attributes exposed to Keycloak.
+	 */
+	private final Map<String, List<String>> attributes;
+	/**
+	 * Id of the component the user was decoded for, to tell if its Keycloak id can be reused.
+	 */
+	@Getter(AccessLevel.NONE)
+	private final String componentId;
+	@Getter(AccessLevel.NONE)
+	private final String keycloakId;
+
+	private RestUser(String componentId, String externalId, String username, String firstName, String lastName, String email, boolean enabled) {
+		this.componentId = componentId;
+		this.externalId = externalId;
+		this.username = username;
+		this.firstName = firstName;
+		this.lastName = lastName;
+		this.email = email;
+		this.enabled = enabled;
+		this.attributes = toAttributes(firstName, lastName, email);
+		this.keycloakId = componentId != null ? new StorageId(componentId, externalId).getId() : null;
+	}
+
+	/**
+	 * Decode a user returned by the API.
+	 * @param componentId Id of the component the user belongs to, used to compute its Keycloak id. Null if unknown
+	 * @return the decoded user, or null if the JSON is null
+	 */
+	public static RestUser of(String componentId, JsonObject json) {
+		if(json == null) return null;
+		return new RestUser(componentId,
+				valueOf(json.getInt("id")),
+				json.getString("username"),
+				getString(json, FIRST_NAME),
+				getString(json, LAST_NAME),
+				getString(json, EMAIL),
+				json.getBoolean(ACTIVE));
+	}
+
+	/**
+	 * @return the Keycloak id of the user in the given component, computed when decoded if it is the same component
+	 */
+	public String getKeycloakId(ComponentModel model) {
+		return keycloakId != null && model.getId().equals(componentId) ? keycloakId : keycloakId(model, externalId);
+	}
+
+	/**
+	 * Copy of the user with an attribute changed locally, before it is sent to the API.
+	 * Attributes not exposed to Keycloak are ignored.
+	 * @param value New value, null to remove it
+	 */
+	public RestUser with(String attribute, String value) {
+		switch(attribute) {
+			case FIRST_NAME:
+				return new RestUser(componentId, externalId, username, value, lastName, email, enabled);
+			case LAST_NAME:
+				return new RestUser(componentId, externalId, username, firstName, value, email, enabled);
+			case EMAIL:
+				return new RestUser(componentId, externalId, username, firstName, lastName, value, enabled);
+			case ACTIVE:
+				return new RestUser(componentId, externalId, username, firstName, lastName, email, Boolean.parseBoolean(value));
+			default:
+				return this;
+		}
+	}
+
+	private static String getString(JsonObject json, String name) {
+		JsonValue value = json.get(name);
+		return value instanceof JsonString ? ((JsonString) value).getString() : null;
+	}
+
+	private static Map<String, List<String>> toAttributes(String firstName, String lastName, String email) {
+		if(firstName == null && lastName == null && email == null) return emptyMap();
+		Map<String, List<String>> attributes = new HashMap<>(4);
+		if(firstName != null) attributes.put(FIRST_NAME, List.of(firstName));
+		if(lastName != null) attributes.put(LAST_NAME, List.of(lastName));
+		if(email != null) attributes.put(EMAIL, List.of(email));
+		return unmodifiableMap(attributes);
+	}
+}
@@ -8,31 +8,45 @@ import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
 
 import jakarta.json.JsonObject;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
 import static java.lang.String.valueOf;
 import static org.jboss.logging.Logger.getLogger;
-import static org.keycloak.storage.StorageId.keycloakId;
 
 public class RestUserAdapter extends AbstractUserAdapterFederatedStorage {
 
 	private static final Logger logger = getLogger(RestUserAdapter.class);
 
-	RestHandler handler;
-	JsonObject user;
+	RestUser user;
+	// user as last loaded or sent to the API, restored when the changes of the transaction are rolled back
+	RestUser committed;
 	String keycloakId;
 
+	private final PendingUserUpdate update;
+
 	public RestUserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, JsonObject user) {
+		this(session, realm, model, RestUser.of(model.getId(), user));
+	}
+
+	/**
+	 * @param user Decoded user, shared with the node cache and the other sessions
+	 */
+	public RestUserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, RestUser user) {
 		super(session, realm, model);
 		this.user = user;
-		this.keycloakId = keycloakId(model, valueOf(user.getInt("id")));
+		this.committed = user;
+		this.keycloakId = user.getKeycloakId(model);
+		this.update = new PendingUserUpdate(session, this::getUsername, () -> committed = this.user, () -> this.user = committed);
 	}
 
 	public void setHandler(RestHandler handler) {
-		this.handler = handler;
+		update.setHandler(handler);
+	}
+
+	public void setUserCache(UserCache userCache) {
+		update.setUserCache(userCache);
 	}
 
 	@Override
@@ -42,46 +56,46 @@ public class RestUserAdapter extends AbstractUserAdapterFederatedStorage {
 
 	@Override
 	public String getUsername() {
-		return user.getString("username");
+		return user.getUsername();
 	}
 
 	@Override
 	public String getFirstName() {
-		return user.getString("firstName");
+		return user.getFirstName();
 	}
 
 	@Override
 	public String getLastName() {
-		return user.getString("lastName");
+		return user.getLastName();
 	}
 
 	@Override
 	public String getEmail() {
-		return user.getString("email");
+		return user.getEmail();
 	}
 	@Override
 	public boolean isEnabled() {
-		return user.getBoolean("active");
+		return user.isEnabled();
 	}
 
 	@Override
 	public void setEnabled(boolean enabled) {
-		handler.setUserAttribute(getUsername(), "active", valueOf(enabled));
+		setUserAttribute(RestUser.ACTIVE, valueOf(enabled));
 	}
 
 	@Override
 	public void setFirstName(String firstName) {
-		handler.setUserAttribute(getUsername(), "firstName", firstName);
+		setUserAttribute("firstName", firstName);
 	}
 
 	@Override
 	public void setLastName(String lastName) {
-		handler.setUserAttribute(getUsername(), "lastName", lastName);
+		setUserAttribute("lastName", lastName);
 	}
 
 	@Override
 	public void setEmail(String email) {
-		handler.setUserAttribute(getUsername(), "email", email);
+		setUserAttribute("email", email);
 	}
 
 	@Override
@@ -107,14 +121,14 @@ public class RestUserAdapter extends AbstractUserAdapterFederatedStorage {
 	@Override
 	public void setSingleAttribute(String name, String value) {
 		logger.infov("Setting single attribute: {0} -> {1}", name, value);
-		handler.setUserAttribute(getUsername(), name, value);
+		setUserAttribute(name, value);
 	}
 
 	@Override
 	public void setAttribute(String name, List<String> values) {
 		logger.infov("Setting attribute: {0} -> {1}", name, values);
 		if (values != null && !values.isEmpty()) {
-			handler.setUserAttribute(getUsername(), name, values.get(0));
+			setUserAttribute(name, values.get(0));
 		}
 	}
 
@@ -123,13 +137,28 @@ public class RestUserAdapter extends AbstractUserAdapterFederatedStorage {
 		logger.infov("Setting email verified: {0}", verified);
 	}
 
+	/**
+	 * Update the attribute locally and register it to be sent to the API when the transaction commits.
+	 * The shared user is not modified: this adapter gets its own copy.
+	 */
+	private void setUserAttribute(String attribute, String value) {
+		user = user.with(attribute, value);
+		update.setUserAttribute(attribute, value);
+	}
+
+	/**
+	 * Send pending attribute changes to the API with a single PATCH request.
+	 */
+	public void flush() {
+		update.flush();
+	}
+
+	/**
+	 * @return unmodifiable attributes precomputed when the user was decoded
+	 */
 	@Override
 	public Map<String, List<String>> getAttributes() {
-		Map<String, List<String>> attrs = new HashMap<>();
-		if (user.containsKey("firstName")) attrs.put("firstName", List.of(getFirstName()));
-		if (user.containsKey("lastName")) attrs.put("lastName", List.of(getLastName()));
-		if (user.containsKey("email")) attrs.put("email", List.of(getEmail()));
-		return attrs;
+		return user.getAttributes();
 	}
 
 	public static String randomPassword() {
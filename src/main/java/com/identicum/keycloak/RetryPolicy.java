@@ -0,0 +1,181 @@
+package com.identicum.keycloak;
+
+import org.apache.http.client.methods.HttpRequestBase;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.identicum.keycloak.RestOperation.*;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Decides which failed calls to the Rest User API are retried, and when hedged lookups are sent.
+ * Only idempotent calls are retried, with exponential backoff and full jitter. Retries and hedged
+ * requests are paid from a budget that grows with the number of requests, so a failing API receives
+ * at most a small percentage of extra load instead of a retry storm.
+ */
+public class RetryPolicy {
+
+	private static final Logger logger = getLogger(RetryPolicy.class);
+
+	private static final Set<RestOperation> IDEMPOTENT_OPERATIONS = EnumSet.of(FIND_USER, FIND_USERS, BULK_LOOKUP, COUNT_USERS, TOKEN);
+	private static final Set<Integer> RETRYABLE_STATUSES = Set.of(502, 503, 504);
+	private static final long MAX_BACKOFF = 1000;
+	private static final double MAX_BUDGET = 10;
+	private static final int LATENCY_WINDOW_SIZE = 256;
+	private static final int HEDGE_DELAY_REFRESH = 32;
+
+	private final int maxAttempts;
+	private final long backoff;
+	private final double budgetRatio;
+	private final boolean hedgingEnabled;
+	private final long hedgeMinDelay;
+
+	// guarded by this
+	private double budget = MAX_BUDGET;
+	private final long[] latencies = new long[LATENCY_WINDOW_SIZE];
+	private int latencyCount = 0;
+	private long hedgeDelay;
+
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder exhaustedBudget = new LongAdder();
+	private final LongAdder hedges = new LongAdder();
+
+	public RetryPolicy(RestConfiguration configuration) {
+		this.maxAttempts = Math.max(configuration.getRetryMaxAttempts(), 1);
+		this.backoff = configuration.getRetryBackoff();
+		this.budgetRatio = configuration.getRetryBudget() / 100.0;
+		this.hedgingEnabled = configuration.getHedgedLookups();
+		this.hedgeMinDelay = configuration.getHedgeMinDelay();
+		this.hedgeDelay = hedgeMinDelay;
+		logger.infov("Initializing retry policy with maxAttempts: {0}, backoff: {1}ms, budget: {2}%, hedgedLookups: {3}",
+				maxAttempts, backoff, configuration.getRetryBudget(), hedgingEnabled);
+	}
+
+	/**
+	 * Register a new call, adding its share to the retry budget.
+	 */
+	public synchronized void onRequest() {
+		budget = Math.min(MAX_BUDGET, budget + budgetRatio);
+	}
+
+	/**
+	 * Whether a call can be sent again after it failed without response.
+	 */
+	public boolean isRetryable(RestOperation operation, HttpRequestBase request) {
+		return maxAttempts > 1
+				&& IDEMPOTENT_OPERATIONS.contains(operation)
+				&& (operation != BULK_LOOKUP || "GET".equals(request.getMethod()));
+	}
+
+	/**
+	 * Whether a call can be sent again after it failed with the given error. Read timeouts are not retried, as the
+	 * API may still be processing the request and a retry would only add load to a slow API. Aborted calls neither.
+	 */
+	public boolean isRetryable(RestOperation operation, HttpRequestBase request, IOException error) {
+		return !isReadTimeout(error) && !request.isAborted() && isRetryable(operation, request);
+	}
+
+	/**
+	 * Whether a call can be sent again after it received the given status.
+	 */
+	public boolean isRetryable(RestOperation operation, HttpRequestBase request, int status) {
+		return RETRYABLE_STATUSES.contains(status) && isRetryable(operation, request);
+	}
+
+	/**
+	 * Take a retry from the budget.
+	 * @param attempt Number of attempts already made
+	 * @return false if the max attempts were reached or the budget is exhausted
+	 */
+	public boolean tryRetry(int attempt) {
+		if(attempt >= maxAttempts) return false;
+		if(!takeBudget()) {
+			exhaustedBudget.increment();
+			logger.debug("Retry budget exhausted. Not retrying");
+			return false;
+		}
+		retries.increment();
+		return true;
+	}
+
+	/**
+	 * @param attempt Number of attempts already made
+	 * @return milliseconds to wait before the next attempt, a random value up to the exponential backoff
+	 */
+	public long backoff(int attempt) {
+		long max = Math.min(backoff << Math.min(attempt - 1, 20), Math.max(MAX_BACKOFF, backoff));
+		return max <= 0 ? 0 : ThreadLocalRandom.current().nextLong(max + 1);
+	}
+
+	public boolean isHedgingEnabled() {
+		return hedgingEnabled;
+	}
+
+	/**
+	 * Take a hedged request from the budget.
+	 * @return false if the budget is exhausted
+	 */
+	public boolean tryHedge() {
+		if(!takeBudget()) {
+			exhaustedBudget.increment();
+			return false;
+		}
+		hedges.increment();
+		return true;
+	}
+
+	/**
+	 * @return milliseconds to wait for a lookup before sending a hedged request: the 95th percentile
+	 * of recent lookups, and at least the configured hedge min delay
+	 */
+	public synchronized long getHedgeDelay() {
+		return hedgeDelay;
+	}
+
+	/**
+	 * Record the latency of a successful lookup, used to compute the hedge delay.
+	 */
+	public synchronized void recordLatency(long nanos) {
+		if(!hedgingEnabled) return;
+		latencies[latencyCount++ % LATENCY_WINDOW_SIZE] = nanos;
+		if(latencyCount % HEDGE_DELAY_REFRESH == 0) {
+			long[] sorted = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_WINDOW_SIZE));
+			Arrays.sort(sorted);
+			long p95 = NANOSECONDS.toMillis(sorted[(int) Math.ceil(sorted.length * 0.95) - 1]);
+			hedgeDelay = Math.max(p95, hedgeMinDelay);
+			if(latencyCount >= 2 * LATENCY_WINDOW_SIZE) latencyCount -= LATENCY_WINDOW_SIZE;
+		}
+	}
+
+	public Map<String, Object> getStats() {
+		HashMap<String, Object> stats = new HashMap<>();
+		stats.put("retries", retries.sum());
+		stats.put("hedges", hedges.sum());
+		stats.put("exhaustedBudget", exhaustedBudget.sum());
+		stats.put("hedgeDelay", getHedgeDelay());
+		return stats;
+	}
+
+	private static boolean isReadTimeout(IOException error) {
+		return error instanceof SocketTimeoutException
+				|| error instanceof HttpTimeoutException && !(error instanceof HttpConnectTimeoutException);
+	}
+
+	private synchronized boolean takeBudget() {
+		if(budget < 1) return false;
+		budget -= 1;
+		return true;
+	}
+}
@@ -1,39 +1,124 @@
 package com.identicum.keycloak;
 
-import lombok.AllArgsConstructor;
+import lombok.AccessLevel;
 import lombok.Getter;
+import org.jboss.logging.Logger;
 
 import jakarta.json.JsonArray;
 import jakarta.json.JsonObject;
 import jakarta.json.JsonReader;
+import jakarta.json.JsonValue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.io.StringReader;
+import java.util.Map;
 
 import static jakarta.json.Json.createReader;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.emptyMap;
+import static org.apache.http.HttpStatus.SC_NOT_MODIFIED;
+import static org.apache.http.HttpStatus.SC_OK;
+import static org.jboss.logging.Logger.getLogger;
 
 @Getter
-@AllArgsConstructor
 public class SimpleHttpResponse {
 
+	private static final Logger logger = getLogger(SimpleHttpResponse.class);
+
 	private int status;
+	/**
+	 * Raw response body. Only kept for non-success and non-JSON responses, or when debug logging is enabled.
+	 */
 	private String response;
+	/**
+	 * Response headers, with lower case names.
+	 */
+	@Getter(AccessLevel.NONE)
+	private Map<String, String> headers;
+	@Getter(AccessLevel.NONE)
+	private JsonValue json;
+
+	public SimpleHttpResponse(int status, String response) {
+		this(status, emptyMap(), response, null);
+	}
+
+	public SimpleHttpResponse(int status, Map<String, String> headers, String response, JsonValue json) {
+		this.status = status;
+		this.headers = headers;
+		this.response = response;
+		this.json = json;
+	}
+
+	/**
+	 * Build a response reading the body from the given stream. Successful JSON bodies are parsed
+	 * directly from the stream, without building an intermediate String.
+	 *
+	 * @param status HTTP status code received
+	 * @param headers Headers received, with lower case names
+	 * @param body Response body, may be null
+	 */
+	public static SimpleHttpResponse fromStream(int status, Map<String, String> headers, InputStream body) throws IOException {
+		if(body == null) {
+			return new SimpleHttpResponse(status, headers, null, null);
+		}
+		if(!isSuccess(status) || !isJson(headers.get("content-type")) || logger.isDebugEnabled()) {
+			return new SimpleHttpResponse(status, headers, new String(body.readAllBytes(), UTF_8), null);
+		}
+		PushbackInputStream stream = new PushbackInputStream(body);
+		int first = stream.read();
+		if(first == -1) {
+			return new SimpleHttpResponse(status, headers, null, null);
+		}
+		stream.unread(first);
+		try(JsonReader reader = createReader(stream)) {
+			return new SimpleHttpResponse(status, headers, null, reader.readValue());
+		}
+	}
 
 	public boolean isSuccess(){
-		return status == 200;
+		return isSuccess(status);
+	}
+
+	/**
+	 * Whether the API answered a conditional request with 304 Not Modified.
+	 */
+	public boolean isNotModified() {
+		return status == SC_NOT_MODIFIED;
+	}
+
+	/**
+	 * Get the first value of a response header.
+	 * @param name Header name, case insensitive
+	 */
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase());
 	}
 
 	public JsonObject getResponseAsJsonObject() {
-		if(response != null) {
-			JsonReader reader = createReader(new StringReader(response));
-			return reader.readObject();
-		}
-		return null;
+		JsonValue value = getResponseAsJsonValue();
+		return value != null ? value.asJsonObject() : null;
 	}
 
 	public JsonArray getResponseAsJsonArray() {
-		if(response != null) {
-			JsonReader reader = createReader(new StringReader(response));
-			return reader.readArray();
+		JsonValue value = getResponseAsJsonValue();
+		return value != null ? value.asJsonArray() : null;
+	}
+
+	public JsonValue getResponseAsJsonValue() {
+		if(json == null && response != null) {
+			try(JsonReader reader = createReader(new StringReader(response))) {
+				json = reader.readValue();
+			}
 		}
-		return null;
+		return json;
+	}
+
+	private static boolean isSuccess(int status) {
+		return status == SC_OK || status == SC_NOT_MODIFIED;
+	}
+
+	private static boolean isJson(String contentType) {
+		return contentType != null && contentType.toLowerCase().contains("json");
 	}
 }
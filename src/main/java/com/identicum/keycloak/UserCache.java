@@ -0,0 +1,400 @@
+package com.identicum.keycloak;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.jboss.logging.Logger;
+
+import jakarta.json.JsonObject;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import static java.lang.System.currentTimeMillis;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Node-wide cache of users returned by the REST API, shared by every session of the factory.
+ * Entries are kept for a fixed TTL and the cache is bounded: when it grows beyond its max size
+ * expired entries are purged and the oldest entry of a small sample is evicted.
+ * Optionally, expired entries are kept for a stale grace period, to be served while they are
+ * refreshed in background or when the API is failing. Expired users with an ETag or Last-Modified
+ * validator are kept until evicted, so they can be revalidated with a conditional request.
+ * Users are cached decoded, so every session reads the same immutable {@link RestUser}.
+ * Keys other than the username a user was found with, such as its email or id, are indexed by username
+ * so invalidating a user does not scan the cache. Lookups take a stamp before asking the API, and their
+ * result is not cached if a user was invalidated meanwhile, so they can not bring back invalidated data.
+ */
+public class UserCache {
+
+	private static final Logger logger = getLogger(UserCache.class);
+	private static final int EVICTION_SAMPLE_SIZE = 16;
+	private static final String EMAIL_KEY_PREFIX = "email:";
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	// keys other than the username of the cached users, by username
+	private final ConcurrentHashMap<String, Set<String>> aliases = new ConcurrentHashMap<>();
+	private final AtomicLong invalidations = new AtomicLong();
+	private final ConcurrentHashMap<String, Count> counts = new ConcurrentHashMap<>();
+	private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+	private final int maxSize;
+	private final long ttl;
+	private final long negativeTtl;
+	private final long countTtl;
+	private final long staleGrace;
+	private final String componentId;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder expirations = new LongAdder();
+	private final LongAdder staleHits = new LongAdder();
+	private final LongAdder revalidations = new LongAdder();
+
+	public UserCache(RestConfiguration configuration) {
+		this(configuration, null);
+	}
+
+	/**
+	 * @param componentId Id of the component whose users are cached, to precompute their Keycloak ids
+	 */
+	public UserCache(RestConfiguration configuration, String componentId) {
+		this.componentId = componentId;
+		this.maxSize = configuration.getUserCacheMaxSize();
+		this.ttl = configuration.getUserCacheTtl() * 1000L;
+		this.negativeTtl = configuration.getUserCacheNegativeTtl() * 1000L;
+		this.countTtl = configuration.getUserCountCacheTtl() * 1000L;
+		this.staleGrace = configuration.getUserCacheStaleGrace() * 1000L;
+		logger.infov("Initializing user cache with maxSize: {0}, ttl: {1}ms, negativeTtl: {2}ms, staleGrace: {3}ms", maxSize, ttl, negativeTtl, staleGrace);
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0 && ttl > 0;
+	}
+
+	/**
+	 * Get a cached lookup result.
+	 * @param key Query used to find the user (username, id or email)
+	 * @return the cached entry, with a null user for cached "not found" results; null on cache miss
+	 */
+	public Entry get(String key) {
+		if(!isEnabled()) return null;
+		long now = currentTimeMillis();
+		Entry entry = entries.get(key);
+		if(entry != null && entry.isExpired(now)) {
+			if(entry.isStale(now) && !entry.isRevalidatable() && remove(key, entry)) expirations.increment();
+			entry = null;
+		}
+		if(entry == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return entry;
+	}
+
+	/**
+	 * Get an expired lookup result still in its stale grace period.
+	 * @return the stale entry, or null if there is none
+	 */
+	public Entry getStale(String key) {
+		if(!isEnabled() || staleGrace <= 0) return null;
+		Entry entry = entries.get(key);
+		if(entry == null || entry.isStale(currentTimeMillis())) return null;
+		staleHits.increment();
+		return entry;
+	}
+
+	/**
+	 * Get a cached user, even if it is expired, whose version can be revalidated with the API.
+	 * @return the entry with an ETag or Last-Modified validator, or null if there is none
+	 */
+	public Entry getRevalidatable(String key) {
+		if(!isEnabled()) return null;
+		Entry entry = entries.get(key);
+		return entry != null && entry.isRevalidatable() ? entry : null;
+	}
+
+	/**
+	 * Get the stamp to take before looking a user up in the API, to be given when its result is cached.
+	 */
+	public long stamp() {
+		return invalidations.get();
+	}
+
+	/**
+	 * Refresh an entry in background, unless it is already being refreshed. Failures are ignored,
+	 * keeping the stale entry until its grace period ends.
+	 * @param loader Function starting the lookup of the user in the API
+	 */
+	public void refreshAsync(String key, Supplier<CompletableFuture<VersionedUser>> loader) {
+		if(!refreshing.add(key)) return;
+		logger.debugv("Refreshing user {0} in background", key);
+		long stamp = stamp();
+		CompletableFuture<VersionedUser> refresh;
+		try {
+			refresh = loader.get();
+		}
+		catch(RuntimeException re) {
+			refreshing.remove(key);
+			logger.debugv("Could not refresh user {0}: {1}", key, re);
+			return;
+		}
+		refresh.whenComplete((version, error) -> {
+			refreshing.remove(key);
+			if(error != null) {
+				logger.debugv("Could not refresh user {0}: {1}", key, error);
+			} else {
+				put(key, version, null, stamp);
+			}
+		});
+	}
+
+	/**
+	 * Cache a lookup result. A null user is only stored when negative caching is enabled.
+	 * @param stamp Stamp taken before the lookup
+	 * @return the user decoded, null if it does not exist
+	 */
+	public RestUser put(String key, JsonObject user, long stamp) {
+		return put(key, VersionedUser.of(user), null, stamp);
+	}
+
+	/**
+	 * Cache a lookup result with its validators. A not modified result renews the cached entry.
+	 * The user is decoded even if the cache is disabled, and it is not cached if a user was invalidated
+	 * since the stamp was taken.
+	 * @param revalidated Entry whose validators were sent in the request. Its user is returned if not modified
+	 * and the entry was removed from the cache in the meantime
+	 * @param stamp Stamp taken before the lookup
+	 * @return the user decoded, or the cached one if not modified; null if it does not exist
+	 */
+	public RestUser put(String key, VersionedUser version, Entry revalidated, long stamp) {
+		long now = currentTimeMillis();
+		if(version.isNotModified()) {
+			Entry previous = entries.get(key);
+			if(previous == null) {
+				// invalidated or evicted while revalidating: the version sent is still the current one
+				return revalidated != null ? revalidated.getUser() : null;
+			}
+			revalidations.increment();
+			String etag = version.getEtag() != null ? version.getEtag() : previous.getEtag();
+			String lastModified = version.getLastModified() != null ? version.getLastModified() : previous.getLastModified();
+			if(invalidations.get() == stamp) {
+				entries.replace(key, previous, new Entry(previous.getUser(), etag, lastModified, now, now + ttl, now + ttl + staleGrace));
+			}
+			return previous.getUser();
+		}
+		RestUser user = RestUser.of(componentId, version.getUser());
+		if(!isEnabled() || invalidations.get() != stamp) return user;
+		Entry entry;
+		if(user == null) {
+			if(negativeTtl <= 0) return null;
+			entry = new Entry(null, null, null, now, now + negativeTtl, now + negativeTtl + staleGrace);
+		} else {
+			entry = new Entry(user, version.getEtag(), version.getLastModified(), now, now + ttl, now + ttl + staleGrace);
+		}
+		Entry replaced = entries.put(key, entry);
+		if(replaced != null) unindex(key, replaced);
+		index(key, entry);
+		// checked again once indexed: an invalidation running meanwhile either removes the entry, or is seen here
+		if(invalidations.get() != stamp) {
+			remove(key, entry);
+			return user;
+		}
+		evictIfNeeded();
+		return user;
+	}
+
+	/**
+	 * @return key of the lookup of a user by email
+	 */
+	public static String emailKey(String email) {
+		return EMAIL_KEY_PREFIX + email;
+	}
+
+	/**
+	 * Remove every entry related to the given username, and the lookup by the given email. Negative lookups
+	 * are not indexed by username, so the email a user now has must be given for a cached "not found" to be removed.
+	 * @param email Email the user has now, null if unknown or unchanged
+	 */
+	public void invalidate(String username, String email) {
+		invalidate(username);
+		if(!isEnabled() || email == null) return;
+		invalidations.incrementAndGet();
+		entries.remove(emailKey(email));
+	}
+
+	/**
+	 * Remove every entry related to the given username, whatever key was used to look it up.
+	 */
+	public void invalidate(String username) {
+		if(!isEnabled() || username == null) return;
+		logger.debugv("Invalidating user {0} from cache", username);
+		invalidations.incrementAndGet();
+		entries.remove(username);
+		Set<String> keys = aliases.remove(username);
+		if(keys == null) return;
+		for(String key : keys) {
+			entries.computeIfPresent(key, (k, entry) -> isUser(entry, username) ? null : entry);
+		}
+	}
+
+	/**
+	 * Get the number of users of a realm, loading it if it is not cached or it is expired.
+	 * @param realmId Realm whose users are counted
+	 * @param loader Function counting the users in the API
+	 */
+	public int getUsersCount(String realmId, IntSupplier loader) {
+		long now = currentTimeMillis();
+		Count count = counts.get(realmId);
+		if(count == null || count.isExpired(now)) {
+			count = new Count(loader.getAsInt(), now + countTtl);
+			if(countTtl > 0) counts.put(realmId, count);
+		}
+		return count.getValue();
+	}
+
+	/**
+	 * Forget the cached number of users, after a user was added or removed.
+	 */
+	public void invalidateCounts() {
+		counts.clear();
+	}
+
+	public void clear() {
+		invalidations.incrementAndGet();
+		entries.clear();
+		aliases.clear();
+		counts.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getStaleHits() {
+		return staleHits.sum();
+	}
+
+	public long getRevalidations() {
+		return revalidations.sum();
+	}
+
+	public Map<String, Long> getStats() {
+		HashMap<String, Long> stats = new HashMap<>();
+		stats.put("size", (long) entries.size());
+		stats.put("maxSize", (long) maxSize);
+		stats.put("hits", hits.sum());
+		stats.put("misses", misses.sum());
+		stats.put("evictions", evictions.sum());
+		stats.put("expirations", expirations.sum());
+		stats.put("staleHits", staleHits.sum());
+		stats.put("revalidations", revalidations.sum());
+		return stats;
+	}
+
+	private void evictIfNeeded() {
+		while(entries.size() > maxSize) {
+			long now = currentTimeMillis();
+			Map.Entry<String, Entry> eldest = null;
+			int sampled = 0;
+			for(Map.Entry<String, Entry> candidate : entries.entrySet()) {
+				if(candidate.getValue().isStale(now)) {
+					if(remove(candidate.getKey(), candidate.getValue())) expirations.increment();
+					continue;
+				}
+				if(eldest == null || candidate.getValue().getCreatedAt() < eldest.getValue().getCreatedAt()) {
+					eldest = candidate;
+				}
+				if(++sampled >= EVICTION_SAMPLE_SIZE) break;
+			}
+			if(eldest != null && remove(eldest.getKey(), eldest.getValue())) {
+				evictions.increment();
+			}
+		}
+	}
+
+	private boolean remove(String key, Entry entry) {
+		if(!entries.remove(key, entry)) return false;
+		unindex(key, entry);
+		return true;
+	}
+
+	private void index(String key, Entry entry) {
+		if(entry.getUser() == null || key.equals(entry.getUser().getUsername())) return;
+		aliases.compute(entry.getUser().getUsername(), (username, keys) -> {
+			Set<String> indexed = keys != null ? keys : ConcurrentHashMap.newKeySet();
+			indexed.add(key);
+			return indexed;
+		});
+	}
+
+	private void unindex(String key, Entry entry) {
+		if(entry.getUser() == null || key.equals(entry.getUser().getUsername())) return;
+		aliases.computeIfPresent(entry.getUser().getUsername(), (username, keys) -> {
+			keys.remove(key);
+			return keys.isEmpty() ? null : keys;
+		});
+	}
+
+	private static boolean isUser(Entry entry, String username) {
+		return entry.getUser() != null && username.equals(entry.getUser().getUsername());
+	}
+
+	@Getter
+	@AllArgsConstructor
+	private static class Count {
+		private final int value;
+		private final long expiresAt;
+
+		public boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+	}
+
+	@Getter
+	@AllArgsConstructor
+	public static class Entry {
+		private final RestUser user;
+		private final String etag;
+		private final String lastModified;
+		private final long createdAt;
+		private final long expiresAt;
+		private final long staleUntil;
+
+		public boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+
+		/**
+		 * Whether the entry is expired and past its stale grace period, so it can not be used anymore.
+		 */
+		public boolean isStale(long now) {
+			return now >= staleUntil;
+		}
+
+		/**
+		 * Whether the user has a validator to be revalidated with a conditional request.
+		 */
+		public boolean isRevalidatable() {
+			return user != null && (etag != null || lastModified != null);
+		}
+	}
+}
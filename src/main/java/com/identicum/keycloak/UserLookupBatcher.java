@@ -0,0 +1,166 @@
+package com.identicum.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.authentication.ForkFlowException;
+import org.keycloak.models.utils.FormMessage;
+
+import jakarta.json.JsonObject;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeoutException;
+
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Collects the user lookups requested concurrently by different sessions during a short window
+ * and resolves them with a single bulk request to the API. A batch is sent as soon as it reaches
+ * the max batch size, or when the window elapses.
+ */
+public class UserLookupBatcher {
+
+	private static final Logger logger = getLogger(UserLookupBatcher.class);
+	private static final String BACKEND_AUTHENTICATION_ERROR = "BACKEND_AUTHENTICATION_ERROR";
+
+	private final RestHandler restHandler;
+	private final int maxBatchSize;
+	private final long window;
+	private final long lookupTimeout;
+	private final ScheduledExecutorService scheduler;
+
+	// guarded by this
+	private Map<String, CompletableFuture<JsonObject>> pending = new HashMap<>();
+	private boolean flushScheduled = false;
+	private boolean closed = false;
+
+	public UserLookupBatcher(RestHandler restHandler, RestConfiguration configuration) {
+		this.restHandler = restHandler;
+		this.maxBatchSize = configuration.getBulkLookupMaxBatchSize();
+		this.window = configuration.getBulkLookupWindow();
+		// the window plus every attempt of the bulk request waiting for a connection, connecting and reading
+		long attemptTimeout = (long) configuration.getApiConnectionRequestTimeout() + configuration.getApiConnectTimeout() + configuration.getApiSocketTimeout();
+		this.lookupTimeout = window + attemptTimeout * Math.max(configuration.getRetryMaxAttempts(), 1);
+		this.scheduler = newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "rest-repo-lookup-batcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		logger.infov("Initializing user lookup batcher with maxBatchSize: {0}, window: {1}ms", maxBatchSize, window);
+	}
+
+	/**
+	 * Find a user by username or id, waiting for the batch it belongs to, at most the window plus the
+	 * API timeouts of the bulk request.
+	 * @return the user found, or null if it does not exist
+	 * @throws ForkFlowException if the lookup failed, timed out, or the batcher is closed
+	 */
+	public JsonObject lookup(String query) {
+		CompletableFuture<JsonObject> future = lookupAsync(query);
+		try {
+			return future.get(lookupTimeout, MILLISECONDS);
+		}
+		catch(ExecutionException ee) {
+			if(ee.getCause() instanceof RuntimeException) throw (RuntimeException) ee.getCause();
+			throw backendError();
+		}
+		catch(TimeoutException te) {
+			logger.warnv("Lookup of user {0} not answered after {1}ms", query, lookupTimeout);
+			throw backendError();
+		}
+		catch(CancellationException ce) {
+			throw backendError();
+		}
+		catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw backendError();
+		}
+	}
+
+	/**
+	 * @return future completed with the user found, null if it does not exist, or exceptionally with a
+	 * {@link ForkFlowException} if the lookup failed or the batcher is closed. Each caller gets its own
+	 * copy of the lookup shared by the sessions asking for the same user, so cancelling it does not
+	 * affect them
+	 */
+	public CompletableFuture<JsonObject> lookupAsync(String query) {
+		CompletableFuture<JsonObject> future;
+		Map<String, CompletableFuture<JsonObject>> fullBatch = null;
+		synchronized(this) {
+			if(closed) {
+				return CompletableFuture.failedFuture(backendError());
+			}
+			future = pending.computeIfAbsent(query, key -> new CompletableFuture<>());
+			if(pending.size() >= maxBatchSize) {
+				fullBatch = pending;
+				pending = new HashMap<>();
+			} else if(!flushScheduled) {
+				try {
+					scheduler.schedule(this::flush, window, MILLISECONDS);
+					flushScheduled = true;
+				}
+				catch(RejectedExecutionException ree) {
+					// closed concurrently: send the batch right away instead of leaving it pending
+					fullBatch = pending;
+					pending = new HashMap<>();
+				}
+			}
+		}
+		if(fullBatch != null) {
+			send(fullBatch);
+		}
+		return future.copy();
+	}
+
+	/**
+	 * Stop batching. Lookups still waiting for their batch fail, and new lookups are rejected.
+	 */
+	public void close() {
+		Map<String, CompletableFuture<JsonObject>> abandoned;
+		synchronized(this) {
+			closed = true;
+			abandoned = pending;
+			pending = new HashMap<>();
+		}
+		scheduler.shutdownNow();
+		if(!abandoned.isEmpty()) logger.infov("Failing {0} user lookups pending on closed batcher", abandoned.size());
+		abandoned.values().forEach(future -> future.completeExceptionally(backendError()));
+	}
+
+	private void flush() {
+		Map<String, CompletableFuture<JsonObject>> batch;
+		synchronized(this) {
+			batch = pending;
+			pending = new HashMap<>();
+			flushScheduled = false;
+		}
+		send(batch);
+	}
+
+	private static ForkFlowException backendError() {
+		return new ForkFlowException(new FormMessage(""), new FormMessage(BACKEND_AUTHENTICATION_ERROR));
+	}
+
+	private void send(Map<String, CompletableFuture<JsonObject>> batch) {
+		if(batch.isEmpty()) return;
+		logger.debugv("Sending batch of {0} user lookups", batch.size());
+		try {
+			restHandler.findUsersByUsernamesAsync(batch.keySet()).whenComplete((users, error) -> batch.forEach((query, future) -> {
+				if(error != null) {
+					future.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+				} else {
+					future.complete(users.get(query));
+				}
+			}));
+		}
+		catch(RuntimeException re) {
+			batch.values().forEach(future -> future.completeExceptionally(re));
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.identicum.keycloak;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.UserStoragePrivateUtil;
+import org.keycloak.storage.UserStorageProviderModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import jakarta.json.JsonArray;
+import jakarta.json.JsonObject;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+import static java.lang.Integer.MAX_VALUE;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Imports the users of the API into the Keycloak local storage. Users are read in pages, and each batch
+ * is imported in its own transaction. Up to syncParallelism batches are imported concurrently while the
+ * next pages are fetched from the API.
+ */
+public class UserSynchronizer {
+
+	private static final Logger logger = getLogger(UserSynchronizer.class);
+
+	private final RestHandler restHandler;
+	private final int batchSize;
+	private final int parallelism;
+	private final String changedSinceParam;
+
+	public UserSynchronizer(RestHandler restHandler, RestConfiguration configuration) {
+		this.restHandler = restHandler;
+		this.batchSize = Math.max(configuration.getSyncBatchSize(), 1);
+		this.parallelism = Math.max(configuration.getSyncParallelism(), 1);
+		this.changedSinceParam = configuration.getSyncChangedSinceParam();
+	}
+
+	/**
+	 * Import every user of the API.
+	 */
+	public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+		logger.infov("Starting full sync of users of component {0}", model.getName());
+		return importUsers(sessionFactory, realmId, model, new HashMap<>());
+	}
+
+	/**
+	 * Import the users changed in the API since the last sync, requested with the syncChangedSinceParam
+	 * query parameter. When the parameter is not configured every user is imported.
+	 */
+	public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model) {
+		if(changedSinceParam == null || changedSinceParam.isEmpty() || lastSync == null) {
+			logger.infov("Changed since parameter not configured. Running full sync of component {0}", model.getName());
+			return sync(sessionFactory, realmId, model);
+		}
+		String since = Instant.ofEpochMilli(lastSync.getTime()).toString();
+		logger.infov("Starting sync of users of component {0} changed since {1}", model.getName(), since);
+		Map<String, String> query = new HashMap<>();
+		query.put(changedSinceParam, since);
+		return importUsers(sessionFactory, realmId, model, query);
+	}
+
+	private SynchronizationResult importUsers(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model, Map<String, String> query) {
+		SynchronizationResult result = new SynchronizationResult();
+		ExecutorService executor = newFixedThreadPool(parallelism, runnable -> {
+			Thread thread = new Thread(runnable, "rest-repo-sync");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Semaphore permits = new Semaphore(parallelism);
+		PagedUserSpliterator pages = restHandler.isPagingSupported() ? new PagedUserSpliterator(restHandler, query, 0, MAX_VALUE, batchSize) : null;
+		try {
+			Iterator<JsonObject> users = pages != null ? Spliterators.iterator(pages) : findUsers(query);
+			while(users.hasNext()) {
+				List<JsonObject> batch = new ArrayList<>(batchSize);
+				while(users.hasNext() && batch.size() < batchSize) {
+					batch.add(users.next());
+				}
+				permits.acquire();
+				executor.execute(() -> {
+					try {
+						SynchronizationResult batchResult = importBatch(sessionFactory, realmId, model, batch);
+						synchronized(result) {
+							result.add(batchResult);
+						}
+					}
+					finally {
+						permits.release();
+					}
+				});
+			}
+			permits.acquire(parallelism);
+		}
+		catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted while importing users");
+		}
+		finally {
+			// a sync stopped before the last page must not leave the next page prefetch running
+			if(pages != null) pages.close();
+			executor.shutdown();
+		}
+		synchronized(result) {
+			logger.infov("Sync of users of component {0} finished: {1}", model.getName(), result.getStatus());
+			return result;
+		}
+	}
+
+	private Iterator<JsonObject> findUsers(Map<String, String> query) {
+		JsonArray all = restHandler.findUsers(query, null, null);
+		logger.infov("Found {0} users to import", all.size());
+		return all.getValuesAs(JsonObject.class).iterator();
+	}
+
+	private SynchronizationResult importBatch(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model, List<JsonObject> batch) {
+		SynchronizationResult result = new SynchronizationResult();
+		try {
+			KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+				RealmModel realm = session.realms().getRealm(realmId);
+				UserProvider localStorage = UserStoragePrivateUtil.userLocalStorage(session);
+				for(JsonObject userJson : batch) {
+					String username = userJson.getString("username");
+					UserModel user = localStorage.getUserByUsername(realm, username);
+					if(user == null) {
+						user = localStorage.addUser(realm, username);
+						user.setFederationLink(model.getId());
+						result.increaseAdded();
+					} else if(model.getId().equals(user.getFederationLink())) {
+						result.increaseUpdated();
+					} else {
+						logger.warnv("User {0} already exists and is not linked to component {1}. Skipping it", username, model.getName());
+						result.increaseFailed();
+						continue;
+					}
+					copyAttributes(userJson, user);
+				}
+			});
+		}
+		catch(RuntimeException re) {
+			logger.errorv(re, "Error importing batch of {0} users", batch.size());
+			SynchronizationResult failed = new SynchronizationResult();
+			failed.setFailed(batch.size());
+			return failed;
+		}
+		return result;
+	}
+
+	/**
+	 * Copy the API attributes of a user to its local copy, updating only the ones that changed.
+	 */
+	public static void copyAttributes(JsonObject userJson, UserModel user) {
+		copyAttributes(RestUser.of(null, userJson), user);
+	}
+
+	public static void copyAttributes(RestUser restUser, UserModel user) {
+		if(!Objects.equals(restUser.getEmail(), user.getEmail())) user.setEmail(restUser.getEmail());
+		if(!Objects.equals(restUser.getFirstName(), user.getFirstName())) user.setFirstName(restUser.getFirstName());
+		if(!Objects.equals(restUser.getLastName(), user.getLastName())) user.setLastName(restUser.getLastName());
+		if(restUser.isEnabled() != user.isEnabled()) user.setEnabled(restUser.isEnabled());
+	}
+}
@@ -0,0 +1,33 @@
+package com.identicum.keycloak;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import jakarta.json.JsonObject;
+
+/**
+ * User returned by the API together with the validators of its version, the ETag and Last-Modified
+ * headers, used to revalidate it with a conditional request once it expires in the cache.
+ */
+@Getter
+@AllArgsConstructor
+public class VersionedUser {
+
+	/**
+	 * User found, null if it does not exist or it was not modified.
+	 */
+	private final JsonObject user;
+	private final String etag;
+	private final String lastModified;
+	/**
+	 * Whether the API answered 304 Not Modified, so the version already known is still valid.
+	 */
+	private final boolean notModified;
+
+	/**
+	 * @return a user without validators, that can not be revalidated
+	 */
+	public static VersionedUser of(JsonObject user) {
+		return new VersionedUser(user, null, null, false);
+	}
+}